@@ -0,0 +1,50 @@
+package com.yourco;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distance gap filling at 1 Hz. Time per op should grow linearly with {@code records}
+ * for every {@code knownEvery}; the old per-record rescan grew with records × known points.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceInterpolatorBenchmark {
+
+    @Param({"1800", "10800", "86400"})   // 30 min, 3 h, 24 h
+    int records;
+
+    @Param({"2", "30", "600"})           // one known distance every N records
+    int knownEvery;
+
+    long[]  times;
+    float[] source;
+    float[] work;
+
+    @Setup
+    public void setup() {
+        times  = new long[records];
+        source = new float[records];
+        for (int i = 0; i < records; i++) {
+            times[i]  = 1_000_000_000L + i;
+            source[i] = (i % knownEvery == 0) ? i * 2.8f : Float.NaN;
+        }
+        work = new float[records];
+    }
+
+    @Benchmark
+    public float[] fill() {
+        System.arraycopy(source, 0, work, 0, records); // fill() works in place
+        DistanceInterpolator.fill(times, work, records, 0f);
+        return work;
+    }
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(args.length > 0 ? args : new String[] { DistanceInterpolatorBenchmark.class.getSimpleName() });
+    }
+}
@@ -0,0 +1,90 @@
+package com.yourco;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The FIT hot paths end to end, on generated 1 Hz treadmill files of 30 min, 3 h and 24 h,
+ * with distance on every RECORD or only on every 30th. Run with {@code -prof gc} to see the
+ * allocation rate next to the time per op.
+ *
+ *  • {@code decode}       FIT bytes to messages plus RECORD columns
+ *  • {@code interpolate}  gap filling on the decoded distance column
+ *  • {@code inject}       decode, interpolate, rewrite and encode (the {@code /inject} path)
+ *  • {@code analyse}      the CLI report, printed to a discarding stream
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dinject.noise.seeded=true")
+public class FitPipelineBenchmark {
+
+    @Param({"1800", "10800", "86400"})   // 30 min, 3 h, 24 h
+    int seconds;
+
+    @Param({"false", "true"})            // distance on every 30th RECORD only
+    boolean sparse;
+
+    byte[] fit;
+    Path file;
+    AddInclineFitGem.DecodedActivity decoded;
+    float[] work;
+    InjectOptions opts = new InjectOptions(42.036369, -91.638498, 0f, 0, 0.10, false); // /inject defaults
+    PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        fit = FitGenerator.generate(FitGenerator.Spec.of(seconds).withDistanceEvery(sparse ? 30 : 1));
+        file = Files.createTempFile("bench-" + seconds + (sparse ? "-sparse" : ""), ".fit");
+        Files.write(file, fit);
+        decoded = AddInclineFitGem.decodeActivity(new ByteArrayInputStream(fit), "bench");
+        work = new float[decoded.records().size()];
+
+        // analyse() reports on System.out; keep the report out of the benchmark output
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.setOut(stdout);
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public AddInclineFitGem.DecodedActivity decode() {
+        return AddInclineFitGem.decodeActivity(new ByteArrayInputStream(fit), "bench");
+    }
+
+    @Benchmark
+    public float[] interpolate() {
+        RecordColumns rec = decoded.records();
+        System.arraycopy(rec.distance, 0, work, 0, rec.size()); // fill() works in place
+        DistanceInterpolator.fill(rec.timestamp, work, rec.size(), 0f);
+        return work;
+    }
+
+    @Benchmark
+    public void inject() throws IOException {
+        AddInclineFitGem.inject(fit, OutputStream.nullOutputStream(), opts);
+    }
+
+    @Benchmark
+    public void analyse() throws IOException {
+        AddInclineFitGem.analyse(file.toString());
+    }
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(args.length > 0 ? args
+                : new String[] { FitPipelineBenchmark.class.getSimpleName(), "-prof", "gc" });
+    }
+}
@@ -0,0 +1,194 @@
+package com.yourco;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Closed-loop load test for {@code POST /inject} against an app running on this machine.
+ *
+ * {@code concurrency} clients each send their next upload as soon as the previous response
+ * has been read, until {@code requests} have completed. The uploads are a FIT file from disk
+ * or {@link FitGenerator} workloads; with {@code --files k} the generator makes k slightly
+ * different activities so that repeated uploads are not all served from the app's caches.
+ * Meanwhile the app's heap is sampled through {@code /actuator/metrics/jvm.memory.used}.
+ *
+ * Reports throughput, p50/p90/p99/max latency, the status codes seen and the heap high-water
+ * mark. Needs nothing but the JDK and the running app, so it works offline.
+ */
+public final class LoadTest {
+
+    private static final Pattern VALUE = Pattern.compile("\"value\"\\s*:\\s*([-0-9.Ee+]+)");
+    private static final String BOUNDARY = "----fit-injector-load-test";
+
+    private LoadTest() {}
+
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:8080", file = null;
+        int concurrency = 8, requests = 200, warmup = 20, files = 1;
+        int seconds = 3600, rate = 1, distanceEvery = 1, devFields = 0;
+        boolean hrv = false;
+        double grade = 0.10;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--url"            -> url = args[++i];
+                    case "--file"           -> file = args[++i];
+                    case "--concurrency"    -> concurrency = Integer.parseInt(args[++i]);
+                    case "--requests"       -> requests = Integer.parseInt(args[++i]);
+                    case "--warmup"         -> warmup = Integer.parseInt(args[++i]);
+                    case "--files"          -> files = Integer.parseInt(args[++i]);
+                    case "--seconds"        -> seconds = Integer.parseInt(args[++i]);
+                    case "--rate"           -> rate = Integer.parseInt(args[++i]);
+                    case "--distance-every" -> distanceEvery = Integer.parseInt(args[++i]);
+                    case "--hrv"            -> hrv = true;
+                    case "--dev-fields"     -> devFields = Integer.parseInt(args[++i]);
+                    case "--grade"          -> grade = Double.parseDouble(args[++i]);
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (concurrency <= 0 || requests <= 0 || warmup < 0 || files <= 0)
+                throw new IllegalArgumentException("concurrency, requests and files must be positive, warmup not negative");
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) { // also covers NumberFormatException
+            System.err.println("Error: " + (e instanceof ArrayIndexOutOfBoundsException ? "missing option value" : e.getMessage()));
+            System.err.println("Usage: java -cp benchmarks.jar com.yourco.LoadTest [--url http://localhost:8080]");
+            System.err.println("         [--concurrency 8] [--requests 200] [--warmup 20] [--grade 0.10]");
+            System.err.println("         [--file in.fit | --files 1 --seconds 3600 --rate 1 --distance-every 1 --hrv --dev-fields 0]");
+            System.exit(1);
+            return;
+        }
+
+        List<byte[]> uploads = new ArrayList<>();
+        if (file != null) {
+            uploads.add(Files.readAllBytes(Path.of(file)));
+        } else {
+            for (int k = 0; k < files; k++) {
+                int s = seconds + k;   // one extra second per variant is enough for a distinct hash
+                uploads.add(FitGenerator.generate(
+                        new FitGenerator.Spec(s, rate, Math.max(1, s / 333), distanceEvery, hrv, devFields)));
+            }
+        }
+        List<byte[]> bodies = new ArrayList<>(uploads.size());
+        for (byte[] fit : uploads) bodies.add(multipart(fit, grade));
+
+        var client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        URI inject = URI.create(url + "/inject");
+        URI heap = URI.create(url + "/actuator/metrics/jvm.memory.used?tag=area:heap");
+
+        System.out.printf("Target      : %s, %d upload(s) of %d bytes%n", inject, uploads.size(), uploads.get(0).length);
+        System.out.printf("Load        : %d client(s), %d request(s) after %d warm-up%n", concurrency, requests, warmup);
+
+        run(client, inject, bodies, concurrency, warmup, null, null);
+
+        long[] latencies = new long[requests];
+        Map<Integer, Integer> statuses = new ConcurrentSkipListMap<>();
+        var heapMax = new AtomicLong(-1);
+        var sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> {
+            long used = sample(client, heap);
+            heapMax.accumulateAndGet(used, Math::max);
+        }, 0, 50, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        run(client, inject, bodies, concurrency, requests, latencies, statuses);
+        long elapsed = System.nanoTime() - start;
+        sampler.shutdownNow();
+
+        Arrays.sort(latencies);
+        System.out.printf("Throughput  : %.1f req/s (%.1f s)%n", requests / (elapsed / 1e9), elapsed / 1e9);
+        System.out.printf("Latency ms  : p50 %.1f  p90 %.1f  p99 %.1f  max %.1f%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.90),
+                percentile(latencies, 0.99), latencies[latencies.length - 1] / 1e6);
+        System.out.printf("Status      : %s%n", new TreeMap<>(statuses));
+        System.out.printf("Heap max    : %s%n", heapMax.get() < 0
+                ? "n/a (is /actuator/metrics exposed?)"
+                : String.format("%.1f MB (sampled every 50 ms)", heapMax.get() / (1024.0 * 1024.0)));
+    }
+
+    // Sends n requests from `concurrency` threads, recording latency and status when asked to
+    private static void run(HttpClient client, URI uri, List<byte[]> bodies, int concurrency, int n,
+                            long[] latencies, Map<Integer, Integer> statuses) throws InterruptedException {
+        if (n == 0) return;
+        var next = new AtomicInteger();
+        var pool = Executors.newFixedThreadPool(concurrency);
+        for (int c = 0; c < concurrency; c++) {
+            pool.execute(() -> {
+                for (int i; (i = next.getAndIncrement()) < n; ) {
+                    var request = HttpRequest.newBuilder(uri)
+                            .timeout(Duration.ofMinutes(5))
+                            .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                            .POST(HttpRequest.BodyPublishers.ofByteArray(bodies.get(i % bodies.size())))
+                            .build();
+                    long t0 = System.nanoTime();
+                    int status;
+                    try {
+                        status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+                    } catch (IOException e) {
+                        status = -1;   // connection refused/reset
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    if (latencies != null) latencies[i] = System.nanoTime() - t0;
+                    if (statuses != null) statuses.merge(status, 1, Integer::sum);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+    }
+
+    private static byte[] multipart(byte[] fit, double grade) throws IOException {
+        var body = new ByteArrayOutputStream(fit.length + 512);
+        String head = "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"grade\"\r\n\r\n" + grade + "\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"load-test.fit\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n";
+        body.write(head.getBytes(StandardCharsets.US_ASCII));
+        body.write(fit);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return body.toByteArray();
+    }
+
+    // Heap in use right now, or -1 when the metrics endpoint is not reachable
+    private static long sample(HttpClient client, URI uri) {
+        try {
+            var response = client.send(HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(2)).build(),
+                                       HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) return -1;
+            Matcher m = VALUE.matcher(response.body());
+            return m.find() ? (long) Double.parseDouble(m.group(1)) : -1;
+        } catch (IOException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e6;
+    }
+}
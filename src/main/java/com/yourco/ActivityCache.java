@@ -0,0 +1,45 @@
+package com.yourco;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Decoded activities by upload token, so trying another grade on the same file needs
+ * neither a second upload nor a second decode.
+ *
+ * The token is the upload's content hash ({@link ResultCache#hash}); uploading the same file
+ * again lands on the same entry. Decoded messages are far larger than the FIT bytes, so an
+ * entry is weighed at {@link MemoryBudget#HEAP_PER_FIT_BYTE} times its upload size against
+ * {@code inject.activity-cache.max-size}, least recently used out first; the default memory
+ * budget leaves that much heap to the cache.
+ */
+@Service
+public class ActivityCache {
+
+    /** A prepared activity and the name it was uploaded under. */
+    record Entry(AddInclineFitGem.PreparedActivity activity, String fileName, int uploadBytes) {}
+
+    /** The token was never issued or its activity has been evicted; the client has to upload again. */
+    static final class UnknownTokenException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnknownTokenException(String token) {
+            super("Unknown or expired upload token, upload the file again: " + token);
+        }
+    }
+
+    private final WeightedLru<String, Entry> entries;
+
+    public ActivityCache(@Value("${inject.activity-cache.max-size:256MB}") DataSize maxSize) {
+        this.entries = new WeightedLru<>(maxSize.toBytes(), e -> (long) e.uploadBytes() * MemoryBudget.HEAP_PER_FIT_BYTE);
+    }
+
+    Entry get(String token) {
+        return entries.get(token);
+    }
+
+    void put(String token, Entry entry) {
+        entries.put(token, entry);
+    }
+}
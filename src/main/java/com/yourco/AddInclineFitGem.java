@@ -9,9 +9,13 @@
 // --------------------------------------------------------------
 // ❶ Inject  (default)
 //    java  -cp .:fit.jar AddInclineFit  in.fit  out.fit  lat lon [alt] [bearing] [--virtual]
+//    add --stream for the single-pass pipeline (bounded memory on long files)
 //
 // ❷ Analyse
 //    java  -cp .:fit.jar AddInclineFit --analyse  file.fit
+//
+// ❸ Scan  (definition-level census, no field decoding; files or directories)
+//    java  -cp .:fit.jar AddInclineFit --scan  file.fit|dir …
 // --------------------------------------------------------------
 
 package com.yourco;
@@ -25,31 +29,37 @@ import java.util.stream.Collectors;
 
 public class AddInclineFitGem { // Ensure filename is AddInclineFitGem.java
 
-    // Pair class for grouping developer fields (Dev Index, Field Num)
-    private record Pair<L, R>(L left, R right) {}
-
     // ---------- constants ----------
     private static final double SEMI_PER_DEG       = (1L << 31) / 180.0;
-    private static final double METERS_PER_DEG_LAT = 111_320.0;
+    static final double METERS_PER_DEG_LAT = 111_320.0;
     private static final double GRADE              = 0.10; // Target average incline grade
     private static final double GEO_STEP           = 3.0;  // Distance between injected GPS points
     // ** NEW: Factor to control altitude noise/variability **
     // Adjust this value to make the grade more or less variable (e.g., 0.2 means +/- 0.1m noise)
-    private static final double ALTITUDE_NOISE_FACTOR = 0.0;
+    static final double ALTITUDE_NOISE_FACTOR = 0.0;
+    // Seed the noise from the inject parameters (-Dinject.noise.seeded=true) so equal requests give equal files
+    static final boolean SEEDED_NOISE = Boolean.getBoolean("inject.noise.seeded");
 
 
     // ---------- helpers ----------
-    private static int    toSemi(double deg)  { return (int)Math.round(deg * SEMI_PER_DEG); }
+    static int    toSemi(double deg)  { return (int)Math.round(deg * SEMI_PER_DEG); }
     private static double semiToDeg(int semi) { return semi / SEMI_PER_DEG; }
-    private static double m2degLat(double m)  { return m / METERS_PER_DEG_LAT; }
-    private static double m2degLon(double m,double latDeg){ return m / (METERS_PER_DEG_LAT * Math.cos(Math.toRadians(latDeg))); }
+    static double m2degLat(double m)  { return m / METERS_PER_DEG_LAT; }
+    static double m2degLon(double m,double latDeg){ return m / (METERS_PER_DEG_LAT * Math.cos(Math.toRadians(latDeg))); }
     private static double pos(Integer s){ return s==null?Double.NaN:semiToDeg(s); }
     private static boolean hasValue(Mesg msg, String fieldName) { if (msg == null) return false; com.garmin.fit.Field f = msg.getField(fieldName); return f != null && f.getNumValues() > 0 && f.getValue(0) != null; }
     private static boolean hasValue(Mesg msg, int fieldNum) { if (msg == null) return false; com.garmin.fit.Field f = msg.getField(fieldNum); return f != null && f.getNumValues() > 0 && f.getValue(0) != null; }
     private static String present(boolean value) { return value ? "Present" : "Absent "; }
 
+    // Same input + options always give the same output (lets the server cache and ETag results)
+    static boolean deterministicOutput() { return ALTITUDE_NOISE_FACTOR == 0.0 || SEEDED_NOISE; }
+
+    static Random noiseRandom(InjectOptions o) {
+        return SEEDED_NOISE ? new Random(Objects.hash(o.lat(), o.lon(), o.alt(), o.bearing(), o.grade(), o.virtual())) : new Random();
+    }
+
     // Helper to safely remove a field by its number
-    private static void safeRemoveField(Mesg msg, int fieldNum) {
+    static void safeRemoveField(Mesg msg, int fieldNum) {
         if (msg == null) return;
         com.garmin.fit.Field field = msg.getField(fieldNum);
         if (field != null) {
@@ -62,11 +72,14 @@ public class AddInclineFitGem { // Ensure filename is AddInclineFitGem.java
     public static void main(String[] args) throws IOException {
         if (args.length < 1) {
             System.err.println("Usage:");
-            System.err.println("  Inject: java -cp .:fit.jar AddInclineFit in.fit out.fit lat lon [alt] [bearing] [--virtual] [--grade <value>]");
+            System.err.println("  Inject: java -cp .:fit.jar AddInclineFit in.fit out.fit lat lon [alt] [bearing] [--virtual] [--grade <value>] [--route <course>] [--stream]");
             System.err.println("  Analyse: java -cp .:fit.jar AddInclineFit --analyse file.fit");
+            System.err.println("  Scan:    java -cp .:fit.jar AddInclineFit --scan file.fit|dir ...");
             System.err.println("\nOptions:");
             System.err.println("  --virtual    : Mark activity as virtual run");
             System.err.println("  --grade <n>  : Set incline grade (default: 0.10 = 10%)");
+            System.err.println("  --route <f>  : Follow a GPX or FIT course (and its elevation) instead of a straight line");
+            System.err.println("  --stream     : Single-pass decode/transform/encode (constant memory)");
             System.exit(1);
         }
         if ("--analyse".equals(args[0])) {
@@ -77,15 +90,32 @@ public class AddInclineFitGem { // Ensure filename is AddInclineFitGem.java
             analyse(args[1]);
             return;
         }
+        if ("--scan".equals(args[0])) {
+            if (args.length < 2) {
+                System.err.println("Scan requires file or directory paths");
+                System.exit(1);
+            }
+            scan(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
 
         // Parse optional flags
-        boolean virtual = false;
+        boolean virtual = false, stream = false;
         double grade = GRADE; // Default to constant value
+        String routeFile = null;
         List<String> filteredArgs = new ArrayList<>();
 
         for (int i = 0; i < args.length; i++) {
             if ("--virtual".equalsIgnoreCase(args[i])) {
                 virtual = true;
+            } else if ("--stream".equalsIgnoreCase(args[i])) {
+                stream = true;
+            } else if ("--route".equalsIgnoreCase(args[i])) {
+                if (i + 1 >= args.length) {
+                    System.err.println("Error: --route must be followed by a GPX or FIT course file");
+                    System.exit(1);
+                }
+                routeFile = args[++i];
             } else if ("--grade".equalsIgnoreCase(args[i])) {
                 if (i + 1 < args.length) {
                     try {
@@ -108,90 +138,99 @@ public class AddInclineFitGem { // Ensure filename is AddInclineFitGem.java
             System.err.println("Inject requires args: in.fit out.fit lat lon [alt] [bearing] [--virtual] [--grade <value>]");
             System.exit(1);
         }
-        inject(filteredArgs.toArray(new String[0]), virtual, grade);
+        String[] a = filteredArgs.toArray(new String[0]);
+        InjectOptions opts = null;
+        try {
+            opts = new InjectOptions(
+                    Double.parseDouble(a[2]),
+                    Double.parseDouble(a[3]),
+                    (a.length>4)?Float.parseFloat(a[4]):0f,
+                    (a.length>5)?Double.parseDouble(a[5]):0.0,
+                    grade, virtual);
+            if (routeFile != null) {
+                if (stream) throw new IllegalArgumentException("--route cannot be combined with --stream");
+                opts = opts.withRoute(Route.parse(java.nio.file.Files.readAllBytes(java.nio.file.Path.of(routeFile))));
+            }
+        } catch (IllegalArgumentException e) { // also covers NumberFormatException
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+        if (stream) injectStreaming(a[0], a[1], opts);
+        else        inject(a[0], a[1], opts);
     }
 
 
     // ===========================================================
     //  Analyse mode (Unchanged from previous version)
     // ===========================================================
-    private static void analyse(String inFile) throws IOException {
+    static void analyse(String inFile) throws IOException {
         System.out.println("Analysing file: " + inFile);
-        List<Mesg> msgs = decodeAll(inFile);
-        if (msgs.isEmpty()) { System.out.println("No messages decoded."); return; }
-
-        // --- Data Structures ---
-        Map<Integer, Long> msgCounts = new TreeMap<>();
-        Map<Integer, String> mesgNumToNameMap = new HashMap<>();
-        List<RecordMesg> recordMsgs = new ArrayList<>();
-        List<LapMesg> lapMsgs = new ArrayList<>();
-        List<EventMesg> eventMsgs = new ArrayList<>();
-        List<DeveloperField> developerFields = new ArrayList<>();
-        Set<String> subSportSources = new HashSet<>();
-        FileIdMesg  fileId  = null; SportMesg   sportM  = null; SessionMesg sessM   = null;
-        ActivityMesg activityM = null;
-
-        // --- First Pass ---
-        for (Mesg m : msgs) {
-            msgCounts.merge(m.getNum(), 1L, Long::sum);
-            mesgNumToNameMap.putIfAbsent(m.getNum(), m.getName());
-            switch (m.getNum()) {
-                case MesgNum.FILE_ID   -> fileId = new FileIdMesg(m);
-                case MesgNum.SPORT     -> sportM = new SportMesg(m);
-                case MesgNum.SESSION   -> sessM  = new SessionMesg(m);
-                case MesgNum.LAP       -> lapMsgs.add(new LapMesg(m));
-                case MesgNum.RECORD    -> recordMsgs.add(new RecordMesg(m));
-                case MesgNum.EVENT     -> eventMsgs.add(new EventMesg(m));
-                case MesgNum.ACTIVITY  -> activityM = new ActivityMesg(m);
-            }
-            if (m.getField("sub_sport") != null) { subSportSources.add(m.getName()); }
-            Iterable<DeveloperField> devFieldsIterable = m.getDeveloperFields();
-            if (devFieldsIterable != null) { for (DeveloperField df : devFieldsIterable) { if (df != null) { developerFields.add(df); } } }
+        FitAnalysis a;
+        try (InputStream in = MappedFileInputStream.open(java.nio.file.Path.of(inFile))) {
+            a = analyse(in, inFile);
         }
+        if (a.totalMessages == 0) { System.out.println("No messages decoded."); return; }
+        FitMetrics.time(FitMetrics.ANALYSE, "report", () -> { report(a); return null; });
+    }
+
+    /** Decodes {@code in} and gathers everything analyse reports on; prints nothing. */
+    static FitAnalysis analyse(InputStream in, String label) {
+        // Single pass: the analysis counts as messages arrive and holds no record list
+        var analysis = new FitAnalysis(label);
+        var counted = new CountingInputStream(in);
+        FitMetrics.time(FitMetrics.ANALYSE, "decode", () -> { decodeInto(counted, label, analysis); return null; });
+        FitMetrics.inputBytes(FitMetrics.ANALYSE, counted.count);
+        FitMetrics.records(FitMetrics.ANALYSE, analysis.recordCount());
+        FitMetrics.messages(FitMetrics.ANALYSE, analysis.totalMessages);
+        return analysis;
+    }
+
+    // Prints the analysis of one decoded file
+    private static void report(FitAnalysis a) {
+        final int DEBUG_COUNT = FitAnalysis.SAMPLE_COUNT;
+        SessionMesg sessM = a.session;
+        List<LapMesg> lapMsgs = a.laps;
 
         // --- Basic Info & Message Counts ---
-        System.out.printf("Total messages        : %d%n", msgs.size());
+        System.out.printf("Total messages        : %d%n", a.totalMessages);
         System.out.println("── Message Type Counts ─────────────────────────────────────");
-        msgCounts.forEach((num, count) -> {
-             String msgName = mesgNumToNameMap.getOrDefault(num, "Unknown_" + num);
+        a.msgCounts.forEach((num, count) -> {
+             String msgName = a.msgNames.getOrDefault(num, "Unknown_" + num);
              System.out.printf("  %-20s (%3d): %d%n", msgName, num, count);
          });
-        String fType = (fileId!=null && fileId.getType()!=null) ? fileId.getType().toString() : "?";
-        String mfg   = (fileId!=null && fileId.getManufacturer() != null) ? Manufacturer.getStringFromValue(fileId.getManufacturer()) : "?";
-        String prod  = (fileId!=null && fileId.getProduct() != null) ? String.valueOf(fileId.getProduct()) : "?";
-        System.out.printf("File Type             : %s%n", fType);
-        System.out.printf("Manufacturer/Product  : %s / %s%n", mfg, prod);
+        System.out.printf("File Type             : %s%n", Objects.requireNonNullElse(a.fileType(), "?"));
+        System.out.printf("Manufacturer/Product  : %s / %s%n", Objects.requireNonNullElse(a.manufacturer(), "?"),
+                                                               Objects.requireNonNullElse(a.product(), "?"));
 
         // --- Sport / SubSport Info ---
-        Sport    sport   = (sportM != null) ? sportM.getSport() : (sessM != null ? sessM.getSport() : null);
-        SubSport subSp   = (sportM != null) ? sportM.getSubSport() : (sessM != null ? sessM.getSubSport() : null);
-        String   profileName = (sportM != null && sportM.getName() != null) ? sportM.getName() : "";
-        if (profileName.isEmpty() && sessM != null && sessM.getSportProfileName() != null) { profileName = sessM.getSportProfileName(); }
+        Sport    sport   = a.sport();
+        SubSport subSp   = a.subSport();
+        String   profileName = a.profileName();
         System.out.printf("Primary Sport         : %s%n", (sport != null) ? sport.toString() : "?");
         System.out.printf("Primary SubSport      : %s%n", (subSp != null) ? subSp.toString() : "?");
         System.out.printf("Profile Name          : %s%n", profileName.isEmpty() ? "(Not Set)" : profileName);
-        System.out.printf("Messages with SubSport: %s%n", subSportSources.isEmpty() ? "None" : String.join(", ", subSportSources));
+        System.out.printf("Messages with SubSport: %s%n", a.subSportSources.isEmpty() ? "None" : String.join(", ", a.subSportSources));
 
         // --- Activity Message Info ---
         System.out.println("── ACTIVITY Message Analysis ──────────────────────────────");
-        if (activityM != null) {
-             System.out.printf("  Timestamp : %s%n", activityM.getTimestamp());
-             System.out.printf("  Event     : %s%n", activityM.getEvent());
-             System.out.printf("  EventType : %s%n", activityM.getEventType());
+        if (a.activity != null) {
+             System.out.printf("  Timestamp : %s%n", a.activity.getTimestamp());
+             System.out.printf("  Event     : %s%n", a.activity.getEvent());
+             System.out.printf("  EventType : %s%n", a.activity.getEventType());
         } else {
              System.out.println("  (No ACTIVITY message found)");
         }
 
         // --- Record Message Analysis ---
-        int recCount = recordMsgs.size();
-        long recWithGps = recordMsgs.stream().filter(r -> r.getPositionLat() != null && r.getPositionLong() != null).count();
-        long recWithDist = recordMsgs.stream().filter(r -> r.getDistance() != null).count();
-        long recWithAlt = recordMsgs.stream().filter(r -> r.getAltitude() != null).count();
-        long recWithEnhAlt = recordMsgs.stream().filter(r -> r.getEnhancedAltitude() != null).count();
-        long recWithSpeed = recordMsgs.stream().filter(r -> r.getSpeed() != null).count();
-        long recWithEnhSpeed = recordMsgs.stream().filter(r -> r.getEnhancedSpeed() != null).count();
-        long recWithGrade = recordMsgs.stream().filter(r -> r.getGrade() != null).count();
-        long recWithVertRatio = recordMsgs.stream().filter(r -> r.getVerticalRatio() != null).count();
+        int recCount = a.recordCount();
+        long recWithGps = a.recordsWithPosition();
+        long recWithDist = a.recordsWith(RecordColumns.DISTANCE);
+        long recWithAlt = a.recordsWith(RecordColumns.ALTITUDE);
+        long recWithEnhAlt = a.recordsWith(RecordColumns.ENHANCED_ALTITUDE);
+        long recWithSpeed = a.recordsWith(RecordColumns.SPEED);
+        long recWithEnhSpeed = a.recordsWith(RecordColumns.ENHANCED_SPEED);
+        long recWithGrade = a.recordsWith(RecordColumns.GRADE);
+        long recWithVertRatio = a.recordsWith(RecordColumns.VERTICAL_RATIO);
         System.out.println("── RECORD Message Analysis ────────────────────────────────");
         System.out.printf("Total Records         : %d%n", recCount);
         if (recCount > 0) { /* ... print stats ... */
@@ -234,10 +273,6 @@ public class AddInclineFitGem { // Ensure filename is AddInclineFitGem.java
              System.out.printf("Total Laps          : %d%n", lapCount);
              System.out.println("--- Per-Lap Details & Checks ---");
              int sumLapAscent = 0; int sumLapDescent = 0;
-             boolean anyLapHasAvgSpeed = false, anyLapHasMaxSpeed = false, anyLapHasEnhAvgSpeed = false;
-             boolean anyLapHasEnhMaxSpeed = false, anyLapHasMinAlt = false, anyLapHasMaxAlt = false;
-             boolean anyLapHasEnhMinAlt = false, anyLapHasEnhMaxAlt = false, anyLapHasFracAsc = false;
-             boolean anyLapHasFracDesc = false, anyLapHasAvgGrade = false, anyLapHasAvgVertRatio = false;
 
              for (int i = 0; i < lapMsgs.size(); i++) {
                  LapMesg l = lapMsgs.get(i);
@@ -249,18 +284,12 @@ public class AddInclineFitGem { // Ensure filename is AddInclineFitGem.java
                      lapIndex, ascent != null ? ascent.toString() : "N/A", descent != null ? descent.toString() : "N/A",
                      grade != null ? String.format("%.2f%%", grade) : "N/A", vertRatio != null ? String.format("%.2f", vertRatio) : "N/A");
 
-                 boolean curLapHasAvgSpeed = hasValue(l, LapMesg.AvgSpeedFieldNum);
-                 boolean curLapHasMaxSpeed = hasValue(l, LapMesg.MaxSpeedFieldNum);
                  boolean curLapHasEnhAvgSpeed = hasValue(l, LapMesg.EnhancedAvgSpeedFieldNum);
                  boolean curLapHasEnhMaxSpeed = hasValue(l, LapMesg.EnhancedMaxSpeedFieldNum);
-                 boolean curLapHasMinAlt = hasValue(l, LapMesg.MinAltitudeFieldNum);
-                 boolean curLapHasMaxAlt = hasValue(l, LapMesg.MaxAltitudeFieldNum);
                  boolean curLapHasEnhMinAlt = hasValue(l, LapMesg.EnhancedMinAltitudeFieldNum);
                  boolean curLapHasEnhMaxAlt = hasValue(l, LapMesg.EnhancedMaxAltitudeFieldNum);
                  boolean curLapHasFracAsc = hasValue(l, LapMesg.TotalFractionalAscentFieldNum);
                  boolean curLapHasFracDesc = hasValue(l, LapMesg.TotalFractionalDescentFieldNum);
-                 boolean curLapHasAvgGrade = hasValue(l, LapMesg.AvgGradeFieldNum);
-                 boolean curLapHasAvgVertRatio = hasValue(l, LapMesg.AvgVerticalRatioFieldNum);
 
                  if (!curLapHasEnhAvgSpeed) System.out.println("    USER_ALERT:: Lap " + lapIndex + " is missing Enhanced Avg Speed!");
                  if (!curLapHasEnhMaxSpeed) System.out.println("    USER_ALERT:: Lap " + lapIndex + " is missing Enhanced Max Speed!");
@@ -269,28 +298,22 @@ public class AddInclineFitGem { // Ensure filename is AddInclineFitGem.java
                  if (!curLapHasFracAsc) System.out.println("    USER_ALERT:: Lap " + lapIndex + " is missing Total Fractional Ascent!");
                  if (!curLapHasFracDesc) System.out.println("    USER_ALERT:: Lap " + lapIndex + " is missing Total Fractional Descent!");
 
-                 anyLapHasAvgSpeed |= curLapHasAvgSpeed; anyLapHasMaxSpeed |= curLapHasMaxSpeed;
-                 anyLapHasEnhAvgSpeed |= curLapHasEnhAvgSpeed; anyLapHasEnhMaxSpeed |= curLapHasEnhMaxSpeed;
-                 anyLapHasMinAlt |= curLapHasMinAlt; anyLapHasMaxAlt |= curLapHasMaxAlt;
-                 anyLapHasEnhMinAlt |= curLapHasEnhMinAlt; anyLapHasEnhMaxAlt |= curLapHasEnhMaxAlt;
-                 anyLapHasFracAsc |= curLapHasFracAsc; anyLapHasFracDesc |= curLapHasFracDesc;
-                 anyLapHasAvgGrade |= curLapHasAvgGrade; anyLapHasAvgVertRatio |= curLapHasAvgVertRatio;
              }
              System.out.println("--- Summary Presence (Across All Laps) ---");
              System.out.printf("Sum of Lap Ascent   : %d m%n", sumLapAscent);
              System.out.printf("Sum of Lap Descent  : %d m%n", sumLapDescent);
-             System.out.printf("Avg Speed           : %s%n", present(anyLapHasAvgSpeed));
-             System.out.printf("Max Speed           : %s%n", present(anyLapHasMaxSpeed));
-             System.out.printf("Enh Avg Speed       : %s%n", present(anyLapHasEnhAvgSpeed));
-             System.out.printf("Enh Max Speed       : %s%n", present(anyLapHasEnhMaxSpeed));
-             System.out.printf("Min Altitude        : %s%n", present(anyLapHasMinAlt));
-             System.out.printf("Max Altitude        : %s%n", present(anyLapHasMaxAlt));
-             System.out.printf("Enh Min Altitude    : %s%n", present(anyLapHasEnhMinAlt));
-             System.out.printf("Enh Max Altitude    : %s%n", present(anyLapHasEnhMaxAlt));
-             System.out.printf("Total Frac Ascent   : %s%n", present(anyLapHasFracAsc));
-             System.out.printf("Total Frac Descent  : %s%n", present(anyLapHasFracDesc));
-             System.out.printf("Avg Grade           : %s%n", present(anyLapHasAvgGrade));
-             System.out.printf("Avg Vertical Ratio  : %s%n", present(anyLapHasAvgVertRatio));
+             System.out.printf("Avg Speed           : %s%n", present(a.anyLapHas(LapMesg.AvgSpeedFieldNum)));
+             System.out.printf("Max Speed           : %s%n", present(a.anyLapHas(LapMesg.MaxSpeedFieldNum)));
+             System.out.printf("Enh Avg Speed       : %s%n", present(a.anyLapHas(LapMesg.EnhancedAvgSpeedFieldNum)));
+             System.out.printf("Enh Max Speed       : %s%n", present(a.anyLapHas(LapMesg.EnhancedMaxSpeedFieldNum)));
+             System.out.printf("Min Altitude        : %s%n", present(a.anyLapHas(LapMesg.MinAltitudeFieldNum)));
+             System.out.printf("Max Altitude        : %s%n", present(a.anyLapHas(LapMesg.MaxAltitudeFieldNum)));
+             System.out.printf("Enh Min Altitude    : %s%n", present(a.anyLapHas(LapMesg.EnhancedMinAltitudeFieldNum)));
+             System.out.printf("Enh Max Altitude    : %s%n", present(a.anyLapHas(LapMesg.EnhancedMaxAltitudeFieldNum)));
+             System.out.printf("Total Frac Ascent   : %s%n", present(a.anyLapHas(LapMesg.TotalFractionalAscentFieldNum)));
+             System.out.printf("Total Frac Descent  : %s%n", present(a.anyLapHas(LapMesg.TotalFractionalDescentFieldNum)));
+             System.out.printf("Avg Grade           : %s%n", present(a.anyLapHas(LapMesg.AvgGradeFieldNum)));
+             System.out.printf("Avg Vertical Ratio  : %s%n", present(a.anyLapHas(LapMesg.AvgVerticalRatioFieldNum)));
          } else { System.out.println("  (No LAP messages found)"); }
 
         // --- Consolidated GAP Readiness Check ---
@@ -320,57 +343,45 @@ public class AddInclineFitGem { // Ensure filename is AddInclineFitGem.java
         } else { System.out.println("  SESSION  | (No Session Msg)   | N/A"); }
          System.out.println("  ---------|--------------------|-----------------------");
          if (lapCount > 0) { /* ... print lap stats ... */
-             System.out.printf("  LAP (Any)| altitude (legacy)  | Min: %s, Max: %s%n", present(lapMsgs.stream().anyMatch(l->hasValue(l, LapMesg.MinAltitudeFieldNum))), present(lapMsgs.stream().anyMatch(l->hasValue(l, LapMesg.MaxAltitudeFieldNum))));
-             System.out.printf("  LAP (Any)| enhanced_altitude  | Min: %s, Max: %s%n", present(lapMsgs.stream().anyMatch(l->hasValue(l, LapMesg.EnhancedMinAltitudeFieldNum))), present(lapMsgs.stream().anyMatch(l->hasValue(l, LapMesg.EnhancedMaxAltitudeFieldNum))));
-             System.out.printf("  LAP (Any)| speed (legacy)     | Avg: %s, Max: %s%n", present(lapMsgs.stream().anyMatch(l->hasValue(l, LapMesg.AvgSpeedFieldNum))), present(lapMsgs.stream().anyMatch(l->hasValue(l, LapMesg.MaxSpeedFieldNum))));
-             System.out.printf("  LAP (Any)| enhanced_speed     | Avg: %s, Max: %s%n", present(lapMsgs.stream().anyMatch(l->hasValue(l, LapMesg.EnhancedAvgSpeedFieldNum))), present(lapMsgs.stream().anyMatch(l->hasValue(l, LapMesg.EnhancedMaxSpeedFieldNum))));
-             System.out.printf("  LAP (Any)| frac_ascent/descent| %s / %s%n", present(lapMsgs.stream().anyMatch(l->hasValue(l, LapMesg.TotalFractionalAscentFieldNum))), present(lapMsgs.stream().anyMatch(l->hasValue(l, LapMesg.TotalFractionalDescentFieldNum))));
-             System.out.printf("  LAP (Any)| grade              | Avg: %s%n", present(lapMsgs.stream().anyMatch(l->hasValue(l, LapMesg.AvgGradeFieldNum))));
-             System.out.printf("  LAP (Any)| vertical_ratio     | Avg: %s%n", present(lapMsgs.stream().anyMatch(l->hasValue(l, LapMesg.AvgVerticalRatioFieldNum))));
+             System.out.printf("  LAP (Any)| altitude (legacy)  | Min: %s, Max: %s%n", present(a.anyLapHas(LapMesg.MinAltitudeFieldNum)), present(a.anyLapHas(LapMesg.MaxAltitudeFieldNum)));
+             System.out.printf("  LAP (Any)| enhanced_altitude  | Min: %s, Max: %s%n", present(a.anyLapHas(LapMesg.EnhancedMinAltitudeFieldNum)), present(a.anyLapHas(LapMesg.EnhancedMaxAltitudeFieldNum)));
+             System.out.printf("  LAP (Any)| speed (legacy)     | Avg: %s, Max: %s%n", present(a.anyLapHas(LapMesg.AvgSpeedFieldNum)), present(a.anyLapHas(LapMesg.MaxSpeedFieldNum)));
+             System.out.printf("  LAP (Any)| enhanced_speed     | Avg: %s, Max: %s%n", present(a.anyLapHas(LapMesg.EnhancedAvgSpeedFieldNum)), present(a.anyLapHas(LapMesg.EnhancedMaxSpeedFieldNum)));
+             System.out.printf("  LAP (Any)| frac_ascent/descent| %s / %s%n", present(a.anyLapHas(LapMesg.TotalFractionalAscentFieldNum)), present(a.anyLapHas(LapMesg.TotalFractionalDescentFieldNum)));
+             System.out.printf("  LAP (Any)| grade              | Avg: %s%n", present(a.anyLapHas(LapMesg.AvgGradeFieldNum)));
+             System.out.printf("  LAP (Any)| vertical_ratio     | Avg: %s%n", present(a.anyLapHas(LapMesg.AvgVerticalRatioFieldNum)));
          } else { System.out.println("  LAP      | (No Lap Msgs)      | N/A"); }
         System.out.println("  ---------|--------------------|-----------------------");
-        boolean likelyGapReady = recCount > 0 && recWithEnhAlt == recCount && recWithEnhSpeed == recCount && recWithGps == recCount;
+        boolean likelyGapReady = a.gapReady();
         System.out.println("Likely GAP Ready?     : " + (likelyGapReady ? "YES (Primary enhanced fields present)" : "NO (Missing primary enhanced fields)"));
 
         // --- Event Summary ---
         System.out.println("── EVENT Message Summary ──────────────────────────────────");
-        if (!eventMsgs.isEmpty()) { /* ... print event types ... */
-             Set<String> eventTypes = eventMsgs.stream().filter(e -> e.getEventType() != null && e.getEvent() != null).map(e -> e.getEventType().toString() + " (" + e.getEvent().toString() + ")").collect(Collectors.toSet());
+        if (a.eventCount > 0) { /* ... print event types ... */
+             Set<String> eventTypes = a.eventTypes;
              System.out.printf("Distinct Event Types  : %s%n", eventTypes.isEmpty() ? "(None found)" : String.join(", ", eventTypes));
         } else { System.out.println("  (No EVENT messages found)"); }
 
         // --- Developer Fields ---
         System.out.println("── Developer Fields Summary ───────────────────────────────");
-        if (!developerFields.isEmpty()) {
-            Map<Pair<Short, Integer>, Long> distinctDevFields = developerFields.stream()
-                .filter(Objects::nonNull)
-                .collect(Collectors.groupingBy(
-                    df -> new Pair<>(df.getDeveloperDataIndex(), df.getNum()),
-                    Collectors.counting()
-                ));
-
-            System.out.printf("Found %d developer field instances.%n", developerFields.size());
-            if (!distinctDevFields.isEmpty()) {
-                 System.out.printf("Distinct Dev Fields (DevIndex, FieldNum): %s%n",
-                     distinctDevFields.keySet().stream()
-                         .map(pair -> String.format("(%d, %d)", pair.left, pair.right))
-                         .collect(Collectors.joining("; ")));
-            } else {
-                 System.out.println("  (No distinct developer fields identified)");
-            }
+        if (a.devFieldInstances > 0) {
+            System.out.printf("Found %d developer field instances.%n", a.devFieldInstances);
+            System.out.printf("Distinct Dev Fields (DevIndex, FieldNum): %s%n",
+                a.devFields.keySet().stream()
+                    .map(k -> String.format("(%d, %d)", k.developerDataIndex(), k.fieldNum()))
+                    .collect(Collectors.joining("; ")));
         } else {
             System.out.println("  (No Developer Fields found)");
         }
 
         // --- First/Last Record Details ---
         System.out.println("── RAW RECORD FIELD DUMPS (First 5) ─────────────────────────");
-        final int DEBUG_COUNT = 5;
         int printed = 0;
-        for (RecordMesg r : recordMsgs) {
-             if (printed >= DEBUG_COUNT) break;
+        for (Mesg r : a.recordSamples) {
+             Long ts = r.getFieldLongValue(RecordMesg.TimestampFieldNum, 0, Fit.SUBFIELD_INDEX_MAIN_FIELD);
              System.out.printf("RECORD[%d] timestamp=%s%n",
                  printed,
-                 r.getTimestamp() != null ? r.getTimestamp() : "n/a");
+                 ts != null ? r.timestampToDateTime(ts) : "n/a");
              // ** Dump ALL fields present in the record **
              for(com.garmin.fit.Field f : r.getFields()) {
                  if (f.getNumValues() > 0) {
@@ -386,136 +397,178 @@ public class AddInclineFitGem { // Ensure filename is AddInclineFitGem.java
 
 
         System.out.println("────────────────────────────────────────────────────────────");
-        System.out.println("Analysis complete for: " + inFile);
+        System.out.println("Analysis complete for: " + a.file);
         System.out.println("────────────────────────────────────────────────────────────");
     }
 
+    // ===========================================================
+    //  Scan mode: definition-level census, data payloads skipped
+    // ===========================================================
+    private static void scan(String[] paths) throws IOException {
+        List<java.nio.file.Path> files = new ArrayList<>();
+        for (String p : paths) {
+            try (var walk = java.nio.file.Files.walk(java.nio.file.Path.of(p))) {
+                walk.filter(f -> java.nio.file.Files.isRegularFile(f) && f.toString().toLowerCase(Locale.ROOT).endsWith(".fit"))
+                    .sorted().forEach(files::add);
+            }
+        }
+        long start = System.nanoTime(), bytes = 0;
+        int invalid = 0;
+        for (var f : files) {
+            System.out.println("Scanning file: " + f);
+            try (InputStream in = MappedFileInputStream.open(f)) {
+                FitScan.Census c = FitScan.scan(in);
+                bytes += c.bytes();
+                printCensus(c);
+            } catch (FitScan.InvalidFitException e) {
+                invalid++;
+                System.out.println("  INVALID: " + e.getMessage());
+            }
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.println("────────────────────────────────────────────────────────────");
+        System.out.printf("Scanned %d file(s), %d invalid, %.1f MB in %.2f s (%.0f MB/s)%n",
+                files.size(), invalid, bytes / 1e6, secs, secs > 0 ? bytes / 1e6 / secs : 0);
+    }
+
+    private static void printCensus(FitScan.Census c) {
+        System.out.printf("Bytes / FIT files     : %d / %d (CRC OK)%n", c.bytes(), c.files());
+        System.out.printf("Total messages        : %d (definitions: %d)%n", c.messages(), c.definitions());
+        System.out.println("── Message Type Counts & Defined Fields ────────────────────");
+        c.messageCounts().forEach((num, count) -> {
+            System.out.printf("  %-20s (%3d): %d%n", FitScan.messageName(num), num, count);
+            String fields = c.fieldCounts().get(num).entrySet().stream()
+                    .map(e -> FitScan.fieldName(num, e.getKey()) + (e.getValue().equals(count) ? "" : "=" + e.getValue()))
+                    .collect(Collectors.joining(", "));
+            System.out.println("      " + fields);
+        });
+        if (!c.developerFields().isEmpty()) {
+            System.out.printf("Distinct Dev Fields (DevIndex, FieldNum): %s%n",
+                c.developerFields().entrySet().stream()
+                    .map(e -> String.format("(%d, %d)=%d", e.getKey().developerDataIndex(), e.getKey().fieldNum(), e.getValue()))
+                    .collect(Collectors.joining("; ")));
+        }
+    }
+
     // --- dumpRecordDetails (Removed - now dumping all fields above) ---
     // private static void dumpRecordDetails(RecordMesg r) { ... }
 
     // --- dumpAllLapFields (Removed - now dumping details in main analysis) ---
     // private static void dumpAllLapFields(List<LapMesg> lapMsgs) { /* ... */ }
 
-    // --- dumpFields (Unchanged) ---
-    private static void dumpFields(String title, Mesg msg) {
-        if (msg == null) {
-             System.out.println("── " + title + " fields ───────────────────────────────────");
-             System.out.println("  (Message not found or null)");
-             return;
-        }
-        System.out.println("── " + title + " fields ───────────────────────────────────");
+    // Every field of a message on one line, name=values, for a debug diagnostic
+    private static String describeFields(Mesg msg) {
+        var sb = new StringBuilder();
         for (com.garmin.fit.Field f: msg.getFields()) {
             int n = f.getNumValues();
             if (n == 0) continue;
             List<Object> vals = new ArrayList<>();
             for (int i = 0; i < n; i++) { vals.add(f.getValue(i)); }
-            System.out.printf("  %-25s (num=%2d, id=%3d) → %s%n", f.getName(), f.getNumValues(), f.getNum(), vals);
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(f.getName()).append('(').append(f.getNum()).append(")=").append(n == 1 ? vals.get(0) : vals);
         }
+        return sb.toString();
      }
 
 
     // ===========================================================
     //  Inject mode (Unchanged from v8 - already correct)
     // ===========================================================
-    private static void inject(String[] a, boolean virtual, double grade) throws IOException {
+    private static void inject(String inFile, String outFile, InjectOptions o) throws IOException {
+        PreparedActivity act = prepare(decodeActivity(inFile));
+        Injection injection = injection(act, o);
+        try (OutputStream out = new FileOutputStream(outFile)) {
+            injection.writeTo(out);
+        }
+        System.out.printf("✔  Processed %d record(s)%n", act.records().size());
+        System.out.printf("✔  Written %s (%d msgs)%n", outFile, injection.messages());
+    }
 
-        String inFile = a[0], outFile = a[1];
-        double startLat = Double.parseDouble(a[2]);
-        double startLon = Double.parseDouble(a[3]);
-        float  startAlt = (a.length>4)?Float.parseFloat(a[4]):0f;
-        double bearing  = (a.length>5)?Double.parseDouble(a[5]):0.0;
-        double cosB=Math.cos(Math.toRadians(bearing)), sinB=Math.sin(Math.toRadians(bearing));
+    /** Decodes {@code in}, injects and streams the encoded FIT to {@code out}. */
+    public static void inject(InputStream in, OutputStream out, InjectOptions o) throws IOException {
+        inject(prepare(in, "upload"), out, o);
+    }
 
-        // Use the provided grade instead of the constant
-        final double finalGrade = grade;
+    /** Same as {@link #inject(InputStream, OutputStream, InjectOptions)} for an upload already in memory. */
+    public static void inject(byte[] in, OutputStream out, InjectOptions o) throws IOException {
+        inject(new ByteArrayInputStream(in), out, o);
+    }
 
-        final short finalSubVal = virtual
-                        ? findVirtualRunValue()
-                        : SubSport.GENERIC.getValue();
+    /** Injects an activity prepared earlier; the same activity can be injected any number of times. */
+    static void inject(PreparedActivity act, OutputStream out, InjectOptions o) throws IOException {
+        injection(act, o).writeTo(out);
+    }
 
-        List<Mesg> src = decodeAll(inFile);
-        var dst = new ArrayList<Mesg>();
+    /**
+     * Rewrites the activity for {@code o} and sizes the output, without encoding anything yet:
+     * {@link Injection#size()} is the exact file size, {@link Injection#writeTo} streams it.
+     */
+    static Injection injection(PreparedActivity act, InjectOptions o) {
+        // The shared RECORD messages are only read; this inject's positions and altitudes are its
+        // own, so any number of injects of one activity can run and stream at once
+        Rewritten out = transform(act, o.resolve());
+        return FitMetrics.time(FitMetrics.INJECT, "size", () -> {
+            var layout = FitStreamEncoder.RecordLayout.of(out.mesgs());
+            var sizer = FitStreamEncoder.sizer(layout);
+            encode(out.mesgs(), sizer);
+            return new Injection(out, layout, sizer.dataSize());
+        });
+    }
 
-        // -------- 1) copy / retag non-record messages -------------
-        for (Mesg m : src) {
-            switch (m.getNum()) {
-                case MesgNum.FILE_ID: case MesgNum.DEVICE_INFO: case MesgNum.EVENT:
-                case MesgNum.USER_PROFILE: case MesgNum.HRV:
-                    dst.add(m); // Copy directly
-                    break;
+    // Output messages in write order, with the RECORD values they are to be written with
+    private record Rewritten(List<Mesg> mesgs, FitStreamEncoder.RecordValues records) {}
 
-                case MesgNum.SPORT:
-                    var sm = new SportMesg(m);
-                    sm.setSport(Sport.RUNNING); sm.setSubSport(SubSport.getByValue(finalSubVal)); sm.setName("Run");
-                    dst.add(sm);
-                    break;
-
-                case MesgNum.SESSION:
-                    var s = new SessionMesg(m);
-                    s.setSport(Sport.RUNNING); s.setSubSport(SubSport.getByValue(finalSubVal)); s.setSportProfileName("Run");
-                    // Keep original distance from session
-                    Float originalTotalDistance = s.getTotalDistance();
-                    safeRemoveField(s, SessionMesg.AvgSpeedFieldNum);
-                    safeRemoveField(s, SessionMesg.MaxSpeedFieldNum);
-                    safeRemoveField(s, SessionMesg.MinAltitudeFieldNum);
-                    safeRemoveField(s, SessionMesg.MaxAltitudeFieldNum);
-                    safeRemoveField(s, SessionMesg.EnhancedMinAltitudeFieldNum);
-                    safeRemoveField(s, SessionMesg.EnhancedMaxAltitudeFieldNum);
-                    dst.add(s);
-                    break;
+    /** An inject whose size is known and whose bytes are produced only as they are written out. */
+    static final class Injection {
+        private final Rewritten dst;
+        private final FitStreamEncoder.RecordLayout layout;
+        private final long dataSize;
 
-                case MesgNum.LAP:
-                    var l = new LapMesg(m);
-                    l.setSport(Sport.RUNNING); l.setSubSport(SubSport.getByValue(finalSubVal));
-                    safeRemoveField(l, LapMesg.AvgSpeedFieldNum);
-                    safeRemoveField(l, LapMesg.MaxSpeedFieldNum);
-                    safeRemoveField(l, LapMesg.MinAltitudeFieldNum);
-                    safeRemoveField(l, LapMesg.MaxAltitudeFieldNum);
-                    dst.add(l);
-                    break;
+        private Injection(Rewritten dst, FitStreamEncoder.RecordLayout layout, long dataSize) {
+            this.dst = dst; this.layout = layout; this.dataSize = dataSize;
+        }
 
-                case MesgNum.RECORD: break; // Handled later
-                case MesgNum.WORKOUT: case MesgNum.WORKOUT_STEP: break; // Skip
-                default: dst.add(m); break; // Copy others
+        /** Bytes {@link #writeTo} will write. */
+        long size() { return FitStreamEncoder.fileSize(dataSize); }
+
+        /** Messages in the output. */
+        int messages() { return dst.mesgs().size(); }
+
+        /** Encodes straight to {@code out} through a small buffer; nothing the size of the output is held. */
+        void writeTo(OutputStream out) throws IOException {
+            try {
+                FitMetrics.time(FitMetrics.INJECT, "encode", () -> {
+                    var enc = FitStreamEncoder.open(out, layout, dst.records(), dataSize);
+                    encode(dst.mesgs(), enc);
+                    enc.close();
+                    return null;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
             }
+            FitMetrics.outputBytes(FitMetrics.INJECT, size());
         }
+    }
 
-        if (dst.stream().noneMatch(m -> m.getNum() == MesgNum.FILE_ID)) { System.err.println("Warning: No FILE_ID message."); }
+    // Everything about an activity that does not depend on the inject options: the decoded
+    // messages and the resolved time-to-distance table (records.distance, interpolated)
+    record PreparedActivity(List<Mesg> mesgs, RecordColumns records, float totalOriginalDist) {}
 
-        // -------- 2) Process RECORD messages: Inject GPS, Set ONLY Enhanced Alt, Remove Legacy --------
-        double curLat = startLat, curLon = startLon;
-        int recIdx = 0;
-        Float firstDist = null, lastDist = null;
-        float recMinAlt = Float.MAX_VALUE; float recMaxAlt = -Float.MAX_VALUE;
-        List<RecordMesg> processedRecords = new ArrayList<>();
-        Random random = new Random(); // For altitude noise
-
-        // First pass to get all the distance values
-        Map<Integer, Float> recordDistances = new HashMap<>();
-        for (int i = 0; i < src.size(); i++) {
-            Mesg m = src.get(i);
-            if (m.getNum() == MesgNum.RECORD) {
-                var r = new RecordMesg(m);
-                Float dist = r.getDistance();
-                if (dist != null) {
-                    recordDistances.put(recIdx, dist);
-                    if (firstDist == null) firstDist = dist;
-                    lastDist = dist;
-                }
-                recIdx++;
-            }
-        }
+    static PreparedActivity prepare(InputStream in, String label) {
+        return prepare(decodeActivity(in, label));
+    }
 
-        // Reset for second pass
-        recIdx = 0;
-        curLat = startLat;
-        curLon = startLon;
+    static PreparedActivity prepare(DecodedActivity act) {
+        return FitMetrics.time(FitMetrics.INJECT, "interpolate", () -> interpolate(act));
+    }
 
+    private static PreparedActivity interpolate(DecodedActivity act) {
         // Get the total distance from the last record or session
-        float totalOriginalDist = lastDist != null ? lastDist : 0f;
+        float lastDist = act.records().lastDistance();
+        float totalOriginalDist = !Float.isNaN(lastDist) ? lastDist : 0f;
         if (totalOriginalDist == 0f) {
             // Try to get from session if available
-            totalOriginalDist = dst.stream()
+            totalOriginalDist = act.mesgs().stream()
                 .filter(m -> m.getNum() == MesgNum.SESSION)
                 .map(m -> new SessionMesg(m))
                 .map(SessionMesg::getTotalDistance)
@@ -524,357 +577,551 @@ public class AddInclineFitGem { // Ensure filename is AddInclineFitGem.java
                 .orElse(0f);
         }
 
-        // Calculate scaling factor to distribute GPS points appropriately
-        double distanceScaleFactor = 1.0;
-        if (recIdx > 1 && totalOriginalDist > 0) {
-            distanceScaleFactor = totalOriginalDist / ((recIdx - 1) * GEO_STEP);
-        }
-
-        // Pre-process to make a complete time-to-distance mapping
-        // This ensures we have distance values for every record, even if original data doesn't have them
-        Map<DateTime, Float> timeToDistMap = new TreeMap<>(Comparator.comparing(DateTime::getTimestamp));
-        List<RecordMesg> orderedRecords = new ArrayList<>();
-
-        // First, collect all records with timestamps and distances
-        float maxKnownDistance = 0f;
-        DateTime firstTime = null;
-        for (Mesg m : src) {
-            if (m.getNum() == MesgNum.RECORD) {
-                RecordMesg r = new RecordMesg(m);
-                DateTime timestamp = r.getTimestamp();
-                Float distance = r.getDistance();
-
-                if (timestamp != null) {
-                    if (firstTime == null) firstTime = timestamp;
-                    orderedRecords.add(r);
-
-                    // If this record has a distance, store it
-                    if (distance != null) {
-                        timeToDistMap.put(timestamp, distance);
-                        if (distance > maxKnownDistance) {
-                            maxKnownDistance = distance;
-                        }
-                    }
-                }
-            }
-        }
-
-        // Get total distance from session if available and greater than what we found in records
-        float sessionTotalDistance = dst.stream()
+        // Get total distance from session if available
+        float sessionTotalDistance = act.mesgs().stream()
             .filter(m -> m.getNum() == MesgNum.SESSION)
             .map(m -> new SessionMesg(m))
             .map(SessionMesg::getTotalDistance)
             .filter(d -> d != null && d > 0)
             .findFirst()
-            .orElse(maxKnownDistance);
-
-        if (sessionTotalDistance > maxKnownDistance) {
-            maxKnownDistance = sessionTotalDistance;
-        }
-
-        // Now interpolate distances for records missing distance data
-        List<DateTime> knownTimes = new ArrayList<>(timeToDistMap.keySet());
-        Collections.sort(knownTimes, Comparator.comparing(DateTime::getTimestamp));
-
-        if (!knownTimes.isEmpty()) {
-            // Handle records before first known distance
-            DateTime firstKnownTime = knownTimes.get(0);
-            float firstKnownDist = timeToDistMap.get(firstKnownTime);
-
-            // Handle records after last known distance
-            DateTime lastKnownTime = knownTimes.get(knownTimes.size() - 1);
-            float lastKnownDist = timeToDistMap.get(lastKnownTime);
-
-            // Linear interpolation for each record without distance
-            for (RecordMesg r : orderedRecords) {
-                DateTime timestamp = r.getTimestamp();
-
-                if (!timeToDistMap.containsKey(timestamp)) {
-                    // This record needs a distance value interpolated
-                    if (timestamp.getTimestamp() < firstKnownTime.getTimestamp()) {
-                        // Before first known distance - assume constant pace
-                        long timeDiff = timestamp.getTimestamp() - firstTime.getTimestamp();
-                        long firstTimeDiff = firstKnownTime.getTimestamp() - firstTime.getTimestamp();
-                        if (firstTimeDiff > 0) {
-                            float dist = firstKnownDist * timeDiff / firstTimeDiff;
-                            timeToDistMap.put(timestamp, dist);
-                        } else {
-                            timeToDistMap.put(timestamp, 0f); // Same time as first
-                        }
-                    } else if (timestamp.getTimestamp() > lastKnownTime.getTimestamp()) {
-                        // After last known distance - extrapolate with last known pace
-                        if (knownTimes.size() >= 2) {
-                            DateTime prevKnownTime = knownTimes.get(knownTimes.size() - 2);
-                            float prevKnownDist = timeToDistMap.get(prevKnownTime);
-
-                            long lastTimeDiff = lastKnownTime.getTimestamp() - prevKnownTime.getTimestamp();
-                            float lastDistDiff = lastKnownDist - prevKnownDist;
-
-                            if (lastTimeDiff > 0) {
-                                float pace = lastDistDiff / lastTimeDiff; // meters per timestamp unit
-                                long extraTimeDiff = timestamp.getTimestamp() - lastKnownTime.getTimestamp();
-                                float extraDist = pace * extraTimeDiff;
-                                timeToDistMap.put(timestamp, lastKnownDist + extraDist);
-                            } else {
-                                // Same timestamp - use same distance
-                                timeToDistMap.put(timestamp, lastKnownDist);
-                            }
-                        } else {
-                            // Only one known point - linear extrapolation to session total
-                            long totalTimeDiff = orderedRecords.get(orderedRecords.size() - 1).getTimestamp().getTimestamp() - firstTime.getTimestamp();
-                            long currentTimeDiff = timestamp.getTimestamp() - firstTime.getTimestamp();
-
-                            if (totalTimeDiff > 0) {
-                                float dist = maxKnownDistance * currentTimeDiff / totalTimeDiff;
-                                timeToDistMap.put(timestamp, dist);
-                            } else {
-                                timeToDistMap.put(timestamp, maxKnownDistance); // Fallback
-                            }
-                        }
-                    } else {
-                        // Between known distances - find surrounding points and interpolate
-                        DateTime before = null;
-                        DateTime after = null;
-
-                        for (DateTime knownTime : knownTimes) {
-                            if (knownTime.getTimestamp() <= timestamp.getTimestamp()) {
-                                before = knownTime;
-                            } else {
-                                after = knownTime;
-                                break;
-                            }
-                        }
-
-                        if (before != null && after != null) {
-                            float beforeDist = timeToDistMap.get(before);
-                            float afterDist = timeToDistMap.get(after);
-                            long beforeTime = before.getTimestamp();
-                            long afterTime = after.getTimestamp();
-                            long totalDiff = afterTime - beforeTime;
-
-                            if (totalDiff > 0) {
-                                float ratio = (float)(timestamp.getTimestamp() - beforeTime) / totalDiff;
-                                float interpolatedDist = beforeDist + ratio * (afterDist - beforeDist);
-                                timeToDistMap.put(timestamp, interpolatedDist);
-                            } else {
-                                timeToDistMap.put(timestamp, beforeDist); // Same time point
-                            }
-                        }
-                    }
-                }
-            }
-        } else if (sessionTotalDistance > 0) {
-            // No known distances in records, but we have session total
-            // Distribute evenly based on timestamp
-            if (!orderedRecords.isEmpty()) {
-                DateTime firstRecordTime = orderedRecords.get(0).getTimestamp();
-                DateTime lastRecordTime = orderedRecords.get(orderedRecords.size() - 1).getTimestamp();
-                long totalDuration = lastRecordTime.getTimestamp() - firstRecordTime.getTimestamp();
-
-                if (totalDuration > 0) {
-                    for (RecordMesg r : orderedRecords) {
-                        DateTime timestamp = r.getTimestamp();
-                        long elapsed = timestamp.getTimestamp() - firstRecordTime.getTimestamp();
-                        float dist = sessionTotalDistance * elapsed / totalDuration;
-                        timeToDistMap.put(timestamp, dist);
-                    }
-                }
+            .orElse(0f);
+
+        // Only timestamped records can be placed; the distance column is NaN where the source had none
+        RecordColumns rec = act.records().timestamped();
+
+        // Interpolate distances for records missing distance data (single linear sweep)
+        DistanceInterpolator.fill(rec.timestamp, rec.distance, rec.size(), sessionTotalDistance);
+        normalizeRecords(rec);
+        return new PreparedActivity(act.mesgs(), rec, totalOriginalDist);
+    }
+
+    // The part of the RECORD rewrite that no option changes, done once: position and enhanced
+    // altitude fields to hold each inject's values (see FitStreamEncoder.RecordValues), legacy
+    // altitude and speed removed, distance filled in where the source had none
+    private static void normalizeRecords(RecordColumns rec) {
+        for (int i = 0; i < rec.size(); i++) {
+            Mesg r = rec.mesg(i);
+            r.setFieldValue(RecordMesg.PositionLatFieldNum, 0, 0, Fit.SUBFIELD_INDEX_MAIN_FIELD);
+            r.setFieldValue(RecordMesg.PositionLongFieldNum, 0, 0, Fit.SUBFIELD_INDEX_MAIN_FIELD);
+            r.setFieldValue(RecordMesg.EnhancedAltitudeFieldNum, 0, 0f, Fit.SUBFIELD_INDEX_MAIN_FIELD);
+            safeRemoveField(r, RecordMesg.AltitudeFieldNum);
+            safeRemoveField(r, RecordMesg.SpeedFieldNum);
+            if (!rec.has(RecordColumns.DISTANCE, i)) {
+                r.setFieldValue(RecordMesg.DistanceFieldNum, 0, rec.distance[i], Fit.SUBFIELD_INDEX_MAIN_FIELD);
             }
         }
+    }
+
+    // Rewrites the prepared activity into the output messages, in write order
+    private static Rewritten transform(PreparedActivity act, InjectOptions.Resolved ro) {
+        Rewritten dst = FitMetrics.time(FitMetrics.INJECT, "transform", () -> rewrite(act, ro));
+        FitMetrics.records(FitMetrics.INJECT, act.records().size());
+        FitMetrics.messages(FitMetrics.INJECT, dst.mesgs().size());
+        return dst;
+    }
 
-        // Now process records with accurate distance-based GPS points
-        recIdx = 0;
-        float lastInterpolatedDist = 0f;
+    private static Rewritten rewrite(PreparedActivity act, InjectOptions.Resolved ro) {
 
-        for (RecordMesg originalRecord : orderedRecords) {
-            var r = new RecordMesg(originalRecord);
-            DateTime timestamp = r.getTimestamp();
+        InjectOptions o = ro.opts();
+        double startLat = o.lat();
+        double startLon = o.lon();
+        float  startAlt = o.alt();
+        double bearing  = o.bearing();
+        Track track = new Track(ro);
 
-            // Get the interpolated/original distance for this record
-            Float recordDist = timeToDistMap.get(timestamp);
-            if (recordDist == null) {
-                // This shouldn't happen with our interpolation, but just in case
-                recordDist = lastInterpolatedDist;
-            } else {
-                lastInterpolatedDist = recordDist;
-            }
+        // Use the provided grade instead of the constant
+        final double finalGrade = o.grade();
+
+        final short finalSubVal = ro.subVal();
+
+        var dst = new ArrayList<Mesg>();
 
-            // Store first and last distance values
-            if (recIdx == 0) {
-                firstDist = recordDist;
+        // -------- 1) copy / retag non-record messages -------------
+        for (Mesg m : act.mesgs()) {
+            switch (m.getNum()) {
+                case MesgNum.FILE_ID: case MesgNum.DEVICE_INFO: case MesgNum.EVENT:
+                case MesgNum.USER_PROFILE: case MesgNum.HRV:
+                    dst.add(m); // Copy directly
+                    break;
+
+                case MesgNum.SPORT:
+                    dst.add(retagSport(m, finalSubVal));
+                    break;
+
+                case MesgNum.SESSION:
+                    dst.add(retagSession(m, finalSubVal));
+                    break;
+
+                case MesgNum.LAP:
+                    dst.add(retagLap(m, finalSubVal));
+                    break;
+
+                case MesgNum.RECORD: break; // Handled later (decoded into act.records())
+                case MesgNum.WORKOUT: case MesgNum.WORKOUT_STEP: break; // Skip
+                default: dst.add(m); break; // Copy others
             }
-            lastDist = recordDist;
+        }
 
-            // Calculate GPS position based on distance traveled
-            double distTraveled = recordDist - (firstDist != null ? firstDist : 0);
-            curLat = startLat + m2degLat(distTraveled * cosB);
-            curLon = startLon + m2degLon(distTraveled * sinB, curLat);
+        if (dst.stream().noneMatch(m -> m.getNum() == MesgNum.FILE_ID)) { FitDiagnostics.warn("No FILE_ID message"); }
+
+        // -------- 2) Process RECORD messages: Inject GPS, Set ONLY Enhanced Alt, Remove Legacy --------
+        double curLat = startLat, curLon = startLon;
+        float recMinAlt = Float.MAX_VALUE; float recMaxAlt = -Float.MAX_VALUE;
+        Random random = noiseRandom(o); // For altitude noise
+
+        RecordColumns rec = act.records();
+        int recCount = rec.size();
+        float[] dists = rec.distance;
+        float totalOriginalDist = act.totalOriginalDist();
+        var values = new FitStreamEncoder.RecordValues(new int[recCount], new int[recCount], new float[recCount]);
+
+        // Now process records with accurate distance-based GPS points; the decoded messages are
+        // shared and already normalized (see normalizeRecords), only this inject's values are set
+        float firstDist = recCount > 0 ? dists[0] : 0f;
+        for (int i = 0; i < recCount; i++) {
+            Mesg r = rec.mesg(i);
+            float recordDist = dists[i];
+
+            // Calculate GPS position (and the course or grade altitude) based on distance traveled
+            double distTraveled = recordDist - firstDist;
+            track.place(distTraveled);
+            curLat = track.lat();
+            curLon = track.lon();
 
             // Set GPS coordinates for this record
-            r.setPositionLat(toSemi(curLat));
-            r.setPositionLong(toSemi(curLon));
+            values.lat()[i] = toSemi(curLat);
+            values.lon()[i] = toSemi(curLon);
 
-            // Calculate altitude based on the distance and grade
-            // Convert all values to float explicitly to avoid lossy conversion errors
-            float targetAlt = startAlt + (float)(distTraveled) * (float)finalGrade;
+            float targetAlt = track.alt;
 
             // Add random noise to the target altitude if configured
             float alt = targetAlt + (float)(random.nextDouble() - 0.5) * (float)ALTITUDE_NOISE_FACTOR;
 
             // Update the record with altitude
-            r.setEnhancedAltitude(alt);
+            values.altitude()[i] = alt;
 
             // Track min/max altitude
             if (alt < recMinAlt) recMinAlt = alt;
             if (alt > recMaxAlt) recMaxAlt = alt;
 
-            // Remove legacy fields
-            safeRemoveField(r, RecordMesg.AltitudeFieldNum);
-            safeRemoveField(r, RecordMesg.SpeedFieldNum);
-
-            // Preserve original distance if it exists
-            if (r.getDistance() == null && recordDist != null) {
-                r.setDistance(recordDist);
-            }
-
-            processedRecords.add(r);
-            recIdx++;
+            dst.add(r);
         }
-        dst.addAll(processedRecords);
-
-        if (recIdx == 0) { /* Handle no records */ }
-        else { System.out.printf("✔  Processed %d record(s)%n", recIdx); }
+        if (recCount > 0) FitDiagnostics.debug("Processed {} record(s)", recCount);
 
         // -------- 3) Use original distance for final summary values --------
-        final float finalSessionMinAlt = (recIdx > 0 && recMinAlt != Float.MAX_VALUE) ? recMinAlt : startAlt;
-        final float finalSessionMaxAlt = (recIdx > 0 && recMaxAlt != -Float.MAX_VALUE) ? recMaxAlt : startAlt;
-        final int finalFirstLat = toSemi(startLat);
-        final int finalFirstLon = toSemi(startLon);
-        final int finalLastLat  = toSemi(curLat);
-        final int finalLastLon  = toSemi(curLon);
-
-        // Use the original total distance from the activity
-        final float finalTotalDist = Math.max(0f, totalOriginalDist);
-
-        // Calculate overall ascent based on TRACKED min/max altitude (reflects noise)
-        final int finalTotalAscent = Math.round(Math.max(0f, finalSessionMaxAlt - finalSessionMinAlt));
-        final int finalTotalDescent = 0;
-        final float finalFracAscent = finalTotalDist > 1e-6 ? (float)finalTotalAscent / finalTotalDist : 0f;
-        final float finalFracDescent = finalTotalDist > 1e-6 ? (float)finalTotalDescent / finalTotalDist : 0f;
-        final double finalBearing = bearing;
+        final Summary summary = !track.onRoute()
+            ? Summary.of(recCount, recMinAlt, recMaxAlt, startAlt, startLat, startLon,
+                         curLat, curLon, totalOriginalDist, bearing, finalGrade, finalSubVal)
+            : track.summary(recCount, recMinAlt, recMaxAlt, recCount > 0 ? dists[recCount - 1] - firstDist : 0,
+                            totalOriginalDist, finalSubVal, lap -> lapSpan(lap, rec, firstDist, track));
 
         // -------- 4) Update SESSION/LAP messages with correct distance values --------
         dst.replaceAll(m -> switch (m.getNum()) {
-            case MesgNum.SESSION -> {
-                var s = new SessionMesg(m);
-                s.setSubSport(SubSport.getByValue(finalSubVal));
-                s.setSportProfileName("Run");
-                s.setStartPositionLat(finalFirstLat);
-                s.setStartPositionLong(finalFirstLon);
-                s.setEndPositionLat(finalLastLat);
-                s.setEndPositionLong(finalLastLon);
-                s.setTotalDistance(finalTotalDist); // Use original distance
-                s.setTotalAscent(finalTotalAscent);
-                s.setTotalDescent(finalTotalDescent);
-                s.setTotalFractionalAscent(finalFracAscent);
-                s.setTotalFractionalDescent(finalFracDescent);
-
-                // Ensure specific fields are removed from Session
-                safeRemoveField(s, SessionMesg.EnhancedMinAltitudeFieldNum);
-                safeRemoveField(s, SessionMesg.EnhancedMaxAltitudeFieldNum);
-                safeRemoveField(s, SessionMesg.AvgSpeedFieldNum);
-                safeRemoveField(s, SessionMesg.MaxSpeedFieldNum);
-                safeRemoveField(s, SessionMesg.MinAltitudeFieldNum);
-                safeRemoveField(s, SessionMesg.MaxAltitudeFieldNum);
-
-                // Bounding box
-                int swLat = (finalBearing > 90 && finalBearing < 270) ? finalLastLat : finalFirstLat;
-                int swLon = (finalBearing > 180 && finalBearing < 360) ? finalLastLon : finalFirstLon;
-                int neLat = (finalBearing <= 90 || finalBearing >= 270) ? finalLastLat : finalFirstLat;
-                int neLon = (finalBearing >= 0 && finalBearing <= 180) ? finalLastLon : finalFirstLon;
-                s.setFieldValue((short)31, 0, swLat);
-                s.setFieldValue((short)32, 0, swLon);
-                s.setFieldValue((short)29, 0, neLat);
-                s.setFieldValue((short)30, 0, neLon);
-                yield s;
-            }
-            case MesgNum.LAP -> {
-                var l = new LapMesg(m);
-                l.setSubSport(SubSport.getByValue(finalSubVal));
-                Float lapDist = l.getTotalDistance();
-                // Preserve original lap distance
-                int lapAscent = 0;
-                float lapFracAscent = 0f;
-
-                // Calculate ascent based on grade and original distance
-                if (lapDist != null && lapDist > 0) {
-                    lapAscent = Math.round(lapDist * (float)finalGrade);
-                    lapFracAscent = (float)lapAscent / lapDist;
-                }
-                int lapDescent = 0;
-                float lapFracDescent = 0f;
-
-                l.setTotalAscent(lapAscent);
-                l.setTotalDescent(lapDescent);
-                l.setTotalFractionalAscent(lapFracAscent);
-                l.setTotalFractionalDescent(lapFracDescent);
-                l.setStartPositionLat(finalFirstLat);
-                l.setStartPositionLong(finalFirstLon);
-                l.setEndPositionLat(finalLastLat);
-                l.setEndPositionLong(finalLastLon);
-                l.setEnhancedMinAltitude(finalSessionMinAlt);
-                l.setEnhancedMaxAltitude(finalSessionMaxAlt);
-
-                safeRemoveField(l, LapMesg.AvgSpeedFieldNum);
-                safeRemoveField(l, LapMesg.MaxSpeedFieldNum);
-                safeRemoveField(l, LapMesg.MinAltitudeFieldNum);
-                safeRemoveField(l, LapMesg.MaxAltitudeFieldNum);
-                yield l;
-            }
+            case MesgNum.SESSION -> patchSession(m, summary);
+            case MesgNum.LAP     -> patchLap(m, summary);
             default -> m;
         });
 
-        // -------- 5) encode FIT -----------------------------------
-        FileEncoder enc = new FileEncoder(new java.io.File(outFile), Fit.ProtocolVersion.V2_0);
-        dst.stream().filter(m -> m.getNum() == MesgNum.FILE_ID).findFirst().ifPresent(enc::write);
+        return new Rewritten(dst, values);
+    }
+
+    // -------- 5) encode FIT (FILE_ID first) -----------------------
+    private static void encode(List<Mesg> dst, MesgListener enc) {
+        dst.stream().filter(m -> m.getNum() == MesgNum.FILE_ID).findFirst().ifPresent(enc::onMesg);
         for (Mesg m : dst) {
-            if (m.getNum() != MesgNum.FILE_ID) {
-            try { enc.write(m); } catch (FitRuntimeException fitEx) {
-                System.err.printf("ERROR encoding message %s: %s%n", m.getName(), fitEx.getMessage());
-                dumpFields("Failed Message: " + m.getName(), m);
+            if (m.getNum() != MesgNum.FILE_ID) encodeSafely(enc, m);
+        }
+    }
+
+
+    // ===========================================================
+    //  Preview (the inject math only: no message rewriting, no encoding)
+    // ===========================================================
+
+    /**
+     * What an inject with these options would produce: the SESSION summary values plus the
+     * distance/altitude profile, downsampled to at most {@code points} evenly spaced records.
+     * Positions are in degrees; {@code southWest}/{@code northEast} are [lat, lon].
+     */
+    public record Preview(int records, float totalDistance, int totalAscent, float minAltitude, float maxAltitude,
+                          double startLat, double startLon, double endLat, double endLon,
+                          double[] southWest, double[] northEast, float[] distance, float[] altitude) {}
+
+    static Preview preview(PreparedActivity act, InjectOptions o, int points) {
+        return FitMetrics.time(FitMetrics.PREVIEW, "profile", () -> profile(act, o, points));
+    }
+
+    private static Preview profile(PreparedActivity act, InjectOptions o, int points) {
+        RecordColumns rec = act.records();
+        int n = rec.size();
+        float[] dists = rec.distance;
+        Track track = new Track(o.resolve());
+        Random random = noiseRandom(o); // Same sequence as inject, so noisy previews match the file
+
+        int keep = Math.min(n, Math.max(points, 2));
+        float[] outDist = new float[keep], outAlt = new float[keep];
+        double curLat = o.lat(), curLon = o.lon();
+        float recMinAlt = Float.MAX_VALUE, recMaxAlt = -Float.MAX_VALUE;
+        float firstDist = n > 0 ? dists[0] : 0f;
+        for (int i = 0, k = 0; i < n; i++) {
+            double distTraveled = dists[i] - firstDist;
+            track.place(distTraveled);
+            float alt = track.alt + (float)(random.nextDouble() - 0.5) * (float)ALTITUDE_NOISE_FACTOR;
+            if (alt < recMinAlt) recMinAlt = alt;
+            if (alt > recMaxAlt) recMaxAlt = alt;
+            if (i == n - 1) {
+                curLat = track.lat();
+                curLon = track.lon();
             }
+            // Sample i when it is the next of keep evenly spaced indices (first and last included)
+            if (k < keep && (keep == 1 || i == (int) ((long) k * (n - 1) / (keep - 1)))) {
+                outDist[k] = dists[i]; outAlt[k] = alt; k++;
             }
         }
+
+        var sum = !track.onRoute()
+            ? Summary.of(n, recMinAlt, recMaxAlt, o.alt(), o.lat(), o.lon(), curLat, curLon,
+                         act.totalOriginalDist(), o.bearing(), o.grade(), subSportFor(o.virtual()))
+            : track.summary(n, recMinAlt, recMaxAlt, n > 0 ? dists[n - 1] - firstDist : 0,
+                            act.totalOriginalDist(), subSportFor(o.virtual()), null);
+        return new Preview(n, sum.totalDist(), sum.totalAscent(), sum.minAlt(), sum.maxAlt(),
+                           semiToDeg(sum.firstLat()), semiToDeg(sum.firstLon()), semiToDeg(sum.lastLat()), semiToDeg(sum.lastLon()),
+                           new double[] { semiToDeg(sum.swLat()), semiToDeg(sum.swLon()) },
+                           new double[] { semiToDeg(sum.neLat()), semiToDeg(sum.neLon()) },
+                           outDist, outAlt);
+    }
+
+
+    // ===========================================================
+    //  Streaming inject mode (decode → transform → encode, one pass)
+    // ===========================================================
+    private static void injectStreaming(String inFile, String outFile, InjectOptions o) throws IOException {
+        FileEncoder enc = new FileEncoder(new java.io.File(outFile), Fit.ProtocolVersion.V2_0);
+        var injector = new StreamingInjector(enc, o.resolve());
+        decodeInto(inFile, injector);
+        injector.finish();
         enc.close();
-        System.out.printf("✔  Written %s (%d msgs)%n", outFile, dst.size());
+
+        System.out.printf("✔  Processed %d record(s)%n", injector.recordCount());
+        System.out.printf("✔  Written %s (%d msgs)%n", outFile, injector.messageCount());
+    }
+
+
+    // ===========================================================
+    //  SPORT / SESSION / LAP rewriting (shared by both inject modes)
+    // ===========================================================
+
+    // Final values patched into SESSION/LAP once every RECORD has been processed.
+    // laps is null on a straight line: every lap then gets the whole track and grade x distance
+    record Summary(float minAlt, float maxAlt, int firstLat, int firstLon, int lastLat, int lastLon,
+                   float totalDist, int totalAscent, int totalDescent,
+                   int swLat, int swLon, int neLat, int neLon,
+                   double grade, short subVal, java.util.function.Function<LapMesg, LapSpan> laps) {
+
+        static Summary of(int recCount, float recMinAlt, float recMaxAlt, float startAlt,
+                          double startLat, double startLon, double lastLat, double lastLon,
+                          float totalOriginalDist, double bearing, double grade, short subVal) {
+            float minAlt = (recCount > 0 && recMinAlt != Float.MAX_VALUE) ? recMinAlt : startAlt;
+            float maxAlt = (recCount > 0 && recMaxAlt != -Float.MAX_VALUE) ? recMaxAlt : startAlt;
+            // Calculate overall ascent based on TRACKED min/max altitude (reflects noise)
+            int totalAscent = Math.round(Math.max(0f, maxAlt - minAlt));
+            int firstLat = toSemi(startLat), firstLon = toSemi(startLon), endLat = toSemi(lastLat), endLon = toSemi(lastLon);
+            // Bounding box corners (SESSION fields 29-32), picked from start/end by the bearing
+            int swLat = (bearing > 90 && bearing < 270) ? endLat : firstLat;
+            int swLon = (bearing > 180 && bearing < 360) ? endLon : firstLon;
+            int neLat = (bearing <= 90 || bearing >= 270) ? endLat : firstLat;
+            int neLon = (bearing >= 0 && bearing <= 180) ? endLon : firstLon;
+            // Use the original total distance from the activity
+            return new Summary(minAlt, maxAlt, firstLat, firstLon, endLat, endLon,
+                               Math.max(0f, totalOriginalDist), totalAscent, 0,
+                               swLat, swLon, neLat, neLon, grade, subVal, null);
+        }
+    }
+
+    // One lap's stretch of a course: end points and what it climbs and descends
+    record LapSpan(int startLat, int startLon, int endLat, int endLon, int ascent, int descent) {}
+
+    // Where each record goes for a distance travelled: along the straight line from the start
+    // point and bearing, or along the course. Keeps the last position placed, and on a course
+    // the first position and bounding box too. On the straight line the position is only
+    // worked out when asked for, so a preview pays for the altitude alone
+    private static final class Track {
+        private final InjectOptions o;
+        private final double cosB, sinB;
+        private final Route route;
+        private final Route.Point p = new Route.Point();
+        private double d, lat, lon;
+        float alt;
+        private boolean placed;
+        private double firstLat, firstLon, minLat, maxLat, minLon, maxLon;
+
+        Track(InjectOptions.Resolved ro) {
+            this.o = ro.opts(); this.cosB = ro.cosB(); this.sinB = ro.sinB(); this.route = o.route();
+            this.lat = o.lat(); this.lon = o.lon(); this.alt = o.alt();
+        }
+
+        boolean onRoute() { return route != null; }
+
+        double lat() { return route == null ? o.lat() + m2degLat(d * cosB) : lat; }
+        double lon() { return route == null ? o.lon() + m2degLon(d * sinB, lat()) : lon; }
+
+        void place(double distTraveled) {
+            d = distTraveled;
+            if (route == null) {
+                alt = o.alt() + (float)(distTraveled) * (float)o.grade();
+                return;
+            }
+            route.place(distTraveled, p);
+            lat = p.lat; lon = p.lon;
+            alt = route.hasElevation() ? p.ele : o.alt() + (float)(distTraveled) * (float)o.grade();
+            if (!placed) {
+                placed = true;
+                firstLat = minLat = maxLat = lat;
+                firstLon = minLon = maxLon = lon;
+            }
+            minLat = Math.min(minLat, lat); maxLat = Math.max(maxLat, lat);
+            minLon = Math.min(minLon, lon); maxLon = Math.max(maxLon, lon);
+        }
+
+        // Summary of a run along the course, lastTravelled metres long; climbs come from the
+        // course elevation when it has one, else from the tracked altitudes as on a straight line
+        Summary summary(int recCount, float recMinAlt, float recMaxAlt, double lastTravelled,
+                        float totalOriginalDist, short subVal, java.util.function.Function<LapMesg, LapSpan> laps) {
+            if (!placed) place(0);
+            var straight = Summary.of(recCount, recMinAlt, recMaxAlt, o.alt(), firstLat, firstLon, lat, lon,
+                                      totalOriginalDist, o.bearing(), o.grade(), subVal);
+            int ascent  = route.hasElevation() ? (int) Math.round(route.ascent(0, lastTravelled)) : straight.totalAscent();
+            int descent = route.hasElevation() ? (int) Math.round(route.descent(0, lastTravelled)) : 0;
+            return new Summary(straight.minAlt(), straight.maxAlt(), straight.firstLat(), straight.firstLon(),
+                               straight.lastLat(), straight.lastLon(), straight.totalDist(), ascent, descent,
+                               toSemi(minLat), toSemi(minLon), toSemi(maxLat), toSemi(maxLon),
+                               o.grade(), subVal, laps);
+        }
+
+        // A lap covering [from, to] metres of the run along the course
+        LapSpan span(double from, double to) {
+            var a = new Route.Point();
+            var b = new Route.Point();
+            route.place(from, a);
+            route.place(to, b);
+            int ascent  = route.hasElevation() ? (int) Math.round(route.ascent(from, to))
+                                               : Math.round((float) (to - from) * (float) o.grade());
+            int descent = route.hasElevation() ? (int) Math.round(route.descent(from, to)) : 0;
+            return new LapSpan(toSemi(a.lat), toSemi(a.lon), toSemi(b.lat), toSemi(b.lon), ascent, descent);
+        }
+    }
+
+    // Where a lap runs along the course: from the distance at its start time, for its total distance
+    private static LapSpan lapSpan(LapMesg l, RecordColumns rec, float firstDist, Track track) {
+        Float lapDist = l.getTotalDistance();
+        DateTime start = l.getStartTime();
+        int n = rec.size();
+        if (lapDist == null || start == null || n == 0) return null;
+        // First record at or after the lap start: binary search while the clock never steps back
+        long t = start.getTimestamp();
+        int lo = 0, hi = n;
+        if (rec.ascending()) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (rec.timestamp[mid] < t) lo = mid + 1; else hi = mid;
+            }
+        } else {
+            while (lo < n && rec.timestamp[lo] < t) lo++;
+        }
+        if (lo == n) return null;
+        double from = rec.distance[lo] - firstDist;
+        return track.span(from, from + lapDist);
+    }
+
+    static SportMesg retagSport(Mesg m, short subVal) {
+        var sm = new SportMesg(m);
+        sm.setSport(Sport.RUNNING); sm.setSubSport(SubSport.getByValue(subVal)); sm.setName("Run");
+        return sm;
+    }
+
+    static SessionMesg retagSession(Mesg m, short subVal) {
+        var s = new SessionMesg(m);
+        s.setSport(Sport.RUNNING); s.setSubSport(SubSport.getByValue(subVal)); s.setSportProfileName("Run");
+        safeRemoveField(s, SessionMesg.AvgSpeedFieldNum);
+        safeRemoveField(s, SessionMesg.MaxSpeedFieldNum);
+        safeRemoveField(s, SessionMesg.MinAltitudeFieldNum);
+        safeRemoveField(s, SessionMesg.MaxAltitudeFieldNum);
+        safeRemoveField(s, SessionMesg.EnhancedMinAltitudeFieldNum);
+        safeRemoveField(s, SessionMesg.EnhancedMaxAltitudeFieldNum);
+        return s;
+    }
+
+    static LapMesg retagLap(Mesg m, short subVal) {
+        var l = new LapMesg(m);
+        l.setSport(Sport.RUNNING); l.setSubSport(SubSport.getByValue(subVal));
+        safeRemoveField(l, LapMesg.AvgSpeedFieldNum);
+        safeRemoveField(l, LapMesg.MaxSpeedFieldNum);
+        safeRemoveField(l, LapMesg.MinAltitudeFieldNum);
+        safeRemoveField(l, LapMesg.MaxAltitudeFieldNum);
+        return l;
+    }
+
+    static SessionMesg patchSession(Mesg m, Summary sum) {
+        var s = new SessionMesg(m);
+        s.setSubSport(SubSport.getByValue(sum.subVal()));
+        s.setSportProfileName("Run");
+        s.setStartPositionLat(sum.firstLat());
+        s.setStartPositionLong(sum.firstLon());
+        s.setEndPositionLat(sum.lastLat());
+        s.setEndPositionLong(sum.lastLon());
+        s.setTotalDistance(sum.totalDist()); // Use original distance
+        s.setTotalAscent(sum.totalAscent());
+        s.setTotalDescent(sum.totalDescent());
+        s.setTotalFractionalAscent(sum.totalDist() > 1e-6 ? (float)sum.totalAscent() / sum.totalDist() : 0f);
+        s.setTotalFractionalDescent(sum.totalDist() > 1e-6 ? (float)sum.totalDescent() / sum.totalDist() : 0f);
+
+        // Ensure specific fields are removed from Session
+        safeRemoveField(s, SessionMesg.EnhancedMinAltitudeFieldNum);
+        safeRemoveField(s, SessionMesg.EnhancedMaxAltitudeFieldNum);
+        safeRemoveField(s, SessionMesg.AvgSpeedFieldNum);
+        safeRemoveField(s, SessionMesg.MaxSpeedFieldNum);
+        safeRemoveField(s, SessionMesg.MinAltitudeFieldNum);
+        safeRemoveField(s, SessionMesg.MaxAltitudeFieldNum);
+
+        // Bounding box
+        s.setFieldValue((short)31, 0, sum.swLat());
+        s.setFieldValue((short)32, 0, sum.swLon());
+        s.setFieldValue((short)29, 0, sum.neLat());
+        s.setFieldValue((short)30, 0, sum.neLon());
+        return s;
+    }
+
+    static LapMesg patchLap(Mesg m, Summary sum) {
+        var l = new LapMesg(m);
+        l.setSubSport(SubSport.getByValue(sum.subVal()));
+        Float lapDist = l.getTotalDistance();
+        // Preserve original lap distance
+        int lapAscent = 0;
+        float lapFracAscent = 0f;
+
+        int lapDescent = 0;
+        float lapFracDescent = 0f;
+        // On a course: the lap's own stretch of it
+        LapSpan span = sum.laps() != null ? sum.laps().apply(l) : null;
+
+        // Calculate ascent based on grade and original distance
+        if (lapDist != null && lapDist > 0) {
+            lapAscent = span != null ? span.ascent() : Math.round(lapDist * (float)sum.grade());
+            lapFracAscent = (float)lapAscent / lapDist;
+            lapDescent = span != null ? span.descent() : 0;
+            lapFracDescent = (float)lapDescent / lapDist;
+        }
+
+        l.setTotalAscent(lapAscent);
+        l.setTotalDescent(lapDescent);
+        l.setTotalFractionalAscent(lapFracAscent);
+        l.setTotalFractionalDescent(lapFracDescent);
+        l.setStartPositionLat(span != null ? span.startLat() : sum.firstLat());
+        l.setStartPositionLong(span != null ? span.startLon() : sum.firstLon());
+        l.setEndPositionLat(span != null ? span.endLat() : sum.lastLat());
+        l.setEndPositionLong(span != null ? span.endLon() : sum.lastLon());
+        l.setEnhancedMinAltitude(sum.minAlt());
+        l.setEnhancedMaxAltitude(sum.maxAlt());
+
+        safeRemoveField(l, LapMesg.AvgSpeedFieldNum);
+        safeRemoveField(l, LapMesg.MaxSpeedFieldNum);
+        safeRemoveField(l, LapMesg.MinAltitudeFieldNum);
+        safeRemoveField(l, LapMesg.MaxAltitudeFieldNum);
+        return l;
+    }
+
+    // Write one message, reporting (but not aborting on) encoder rejections
+    static void encodeSafely(MesgListener enc, Mesg m) {
+        try { enc.onMesg(m); } catch (FitRuntimeException fitEx) {
+            FitDiagnostics.warn("Skipped {} message the encoder rejected: {}", m.getName(), fitEx.getMessage());
+            if (FitDiagnostics.debugEnabled()) FitDiagnostics.debug("Rejected {} fields: {}", m.getName(), describeFields(m));
+        }
     }
 
 
     // ===========================================================
-    //  decode helper (Unchanged)
+    //  decode helpers
     // ===========================================================
-    private static List<Mesg> decodeAll(String file) throws IOException {
-        var list = new ArrayList<Mesg>();
-        try (InputStream in = new FileInputStream(file)) {
-            Decode d = new Decode();
-            MesgBroadcaster bc = new MesgBroadcaster();
-            bc.addListener((Mesg m) -> list.add(m));
-            d.read(in, bc, bc);
+    // Decoded activity: non-record messages in file order, RECORDs as columns
+    record DecodedActivity(List<Mesg> mesgs, RecordColumns records) {}
+
+    private static DecodedActivity decodeActivity(String file) throws IOException {
+        try (InputStream in = MappedFileInputStream.open(java.nio.file.Path.of(file))) {
+            return decodeActivity(in, file);
+        }
+    }
+
+    static DecodedActivity decodeActivity(InputStream in, String label) {
+        var mesgs = new ArrayList<Mesg>();
+        var records = new RecordColumns();
+        var counted = new CountingInputStream(in);
+        FitMetrics.time(FitMetrics.INJECT, "decode", () -> {
+            decodeInto(counted, label, m -> {
+                if (m.getNum() == MesgNum.RECORD) records.add(m);
+                else mesgs.add(m);
+            });
+            return null;
+        });
+        FitMetrics.inputBytes(FitMetrics.INJECT, counted.count);
+        return new DecodedActivity(mesgs, records);
+    }
+
+    // Counts the bytes the decoder pulls, for the input size metric
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+        CountingInputStream(InputStream in) { super(in); }
+        @Override public int read() throws IOException { int b = super.read(); if (b >= 0) count++; return b; }
+        @Override public int read(byte[] b, int off, int len) throws IOException { int n = super.read(b, off, len); if (n > 0) count += n; return n; }
+        @Override public long skip(long n) throws IOException { long k = super.skip(n); count += k; return k; }
+    }
+
+    // Push every decoded message straight to the listener, nothing is retained here
+    private static void decodeInto(String file, MesgListener listener) throws IOException {
+        try (InputStream in = MappedFileInputStream.open(java.nio.file.Path.of(file))) {
+            decodeInto(in, file, listener);
+        }
+    }
+
+    private static void decodeInto(InputStream in, String label, MesgListener listener) {
+        Relay relay = RELAY.get();
+        relay.target = listener;
+        try {
+            // Decode keeps accumulator/developer-field state with no reset, so it stays per call
+            new Decode().read(in, relay.bc, relay.bc);
         } catch (FitRuntimeException e) {
-             System.err.println("Error decoding FIT file: " + file);
-             e.printStackTrace(); throw e;
+             FitDiagnostics.warn("Error decoding FIT file {}: {}", label, e.getMessage());
+             throw e;
+        } finally {
+            relay.target = null;
         }
-        return list;
+    }
+
+    // MesgBroadcaster allocates ~120 listener lists, so each thread keeps one and retargets it per decode
+    private static final ThreadLocal<Relay> RELAY = ThreadLocal.withInitial(Relay::new);
+
+    private static final class Relay implements MesgListener {
+        final MesgBroadcaster bc = new MesgBroadcaster();
+        MesgListener target;
+        Relay() { bc.addListener(this); }
+        @Override public void onMesg(Mesg m) { target.onMesg(m); }
     }
 
     // ===========================================================
-    //  SAFE lookup of "virtual" raw value (Unchanged)
+    //  SAFE lookup of "virtual" raw value (resolved once per JVM)
     // ===========================================================
+    static short subSportFor(boolean virtual) {
+        return virtual ? VirtualSubSport.VALUE : SubSport.GENERIC.getValue();
+    }
+
+    private static final class VirtualSubSport {
+        static final short VALUE = findVirtualRunValue();
+    }
+
     private static short findVirtualRunValue() {
         final short VIRTUAL_RUN_VALUE = 18; final short VIRTUAL_ACTIVITY_VALUE = 58;
         try { java.lang.reflect.Field f = SubSport.class.getField("VIRTUAL_RUN"); Object v = f.get(null); if (v instanceof SubSport ss) { if (ss.getValue() == VIRTUAL_RUN_VALUE) return VIRTUAL_RUN_VALUE; } } catch (Exception ignored) {}
-        try { java.lang.reflect.Field f = SubSport.class.getField("VIRTUAL_ACTIVITY"); Object v = f.get(null); if (v instanceof SubSport ss) { if (ss.getValue() == VIRTUAL_ACTIVITY_VALUE) { System.out.println("Using SubSport.VIRTUAL_ACTIVITY (" + VIRTUAL_ACTIVITY_VALUE + ") as fallback."); return VIRTUAL_ACTIVITY_VALUE; } } } catch (Exception ignored) {}
-        System.out.println("Warning: Could not reflectively find VIRTUAL_RUN/ACTIVITY SubSport. Using hard-wired value: " + VIRTUAL_RUN_VALUE);
+        try { java.lang.reflect.Field f = SubSport.class.getField("VIRTUAL_ACTIVITY"); Object v = f.get(null); if (v instanceof SubSport ss) { if (ss.getValue() == VIRTUAL_ACTIVITY_VALUE) { FitDiagnostics.info("Using SubSport.VIRTUAL_ACTIVITY ({}) as fallback.", VIRTUAL_ACTIVITY_VALUE); return VIRTUAL_ACTIVITY_VALUE; } } } catch (Exception ignored) {}
+        FitDiagnostics.warn("Could not reflectively find VIRTUAL_RUN/ACTIVITY SubSport. Using hard-wired value: {}", VIRTUAL_RUN_VALUE);
         return VIRTUAL_RUN_VALUE;
     }
 } // End of AddInclineFitGem class
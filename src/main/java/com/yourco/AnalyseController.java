@@ -0,0 +1,86 @@
+package com.yourco;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.garmin.fit.FitRuntimeException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@code POST /analyse}: the CLI's {@code --analyse} report as JSON, for tooling and as a
+ * pre-check before injecting. The file is decoded before the response starts, so an invalid
+ * FIT still gets a 400; the report is then written field by field to the response.
+ *
+ * With {@code scan=true} the answer is the definition-level census of {@code --scan}
+ * instead: message counts, defined fields and developer fields, without decoding any values.
+ */
+@RestController
+public class AnalyseController {
+
+    private final InjectionEngine engine;
+    private final ObjectMapper json;
+    private final CpuBulkhead cpu;
+
+    public AnalyseController(InjectionEngine engine, ObjectMapper json, CpuBulkhead cpu) {
+        this.engine = engine;
+        this.json = json;
+        this.cpu = cpu;
+    }
+
+    @PostMapping(path = "/analyse", consumes = MediaType.MULTIPART_FORM_DATA_VALUE,
+                 produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> analyse(
+            @RequestParam(name="file") MultipartFile file,
+            @RequestParam(name="scan", defaultValue="false") boolean scan) throws Exception {
+        if (scan) {
+            FitScan.Census census = cpu.call(FitMetrics.ANALYSE, () -> {
+                try (InputStream in = file.getInputStream()) {
+                    return engine.scan(in);
+                }
+            });
+            return json(g -> AnalysisJson.write(census, file.getOriginalFilename(), g));
+        }
+
+        FitAnalysis analysis = cpu.call(FitMetrics.ANALYSE, () -> {
+            try (InputStream in = file.getInputStream()) {
+                return engine.analyse(in, file.getOriginalFilename());
+            }
+        });
+        return json(g -> AnalysisJson.write(analysis, g));
+    }
+
+    @FunctionalInterface
+    private interface JsonBody {
+        void write(JsonGenerator g) throws IOException;
+    }
+
+    private ResponseEntity<StreamingResponseBody> json(JsonBody writer) {
+        StreamingResponseBody body = out -> FitMetrics.time(FitMetrics.ANALYSE, "report", () -> {
+            try (var g = json.getFactory().createGenerator(out)) {
+                writer.write(g);
+            }
+            return null;
+        });
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    @ExceptionHandler(OverloadedException.class)
+    public ResponseEntity<String> overloaded(OverloadedException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body(e.getMessage());
+    }
+
+    @ExceptionHandler(FitRuntimeException.class)
+    public ResponseEntity<String> badFit(FitRuntimeException e) {
+        return ResponseEntity.badRequest().body("Invalid FIT file: " + e.getMessage());
+    }
+}
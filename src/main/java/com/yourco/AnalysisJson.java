@@ -0,0 +1,227 @@
+package com.yourco;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.garmin.fit.*;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Writes a {@link FitAnalysis} as JSON, straight to a streaming generator: the same content
+ * as the CLI report (message counts, GAP field presence per RECORD/SESSION/LAP, per-lap
+ * ascent, developer field census, first RECORDs) without building any text or tree first.
+ */
+final class AnalysisJson {
+
+    private AnalysisJson() {}
+
+    static void write(FitAnalysis a, JsonGenerator g) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("file", a.file);
+        g.writeNumberField("totalMessages", a.totalMessages);
+
+        g.writeArrayFieldStart("messageCounts");
+        for (var e : a.msgCounts.entrySet()) {
+            g.writeStartObject();
+            g.writeNumberField("num", e.getKey());
+            g.writeStringField("name", a.msgNames.getOrDefault(e.getKey(), "Unknown_" + e.getKey()));
+            g.writeNumberField("count", e.getValue());
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+
+        g.writeStringField("fileType", a.fileType());
+        g.writeStringField("manufacturer", a.manufacturer());
+        g.writeStringField("product", a.product());
+        g.writeStringField("sport", a.sport() != null ? a.sport().toString() : null);
+        g.writeStringField("subSport", a.subSport() != null ? a.subSport().toString() : null);
+        g.writeStringField("profileName", a.profileName().isEmpty() ? null : a.profileName());
+        g.writeArrayFieldStart("subSportMessages");
+        for (String name : a.subSportSources) g.writeString(name);
+        g.writeEndArray();
+
+        g.writeFieldName("activity");
+        if (a.activity != null) {
+            g.writeStartObject();
+            g.writeStringField("timestamp", iso(a.activity.getTimestamp()));
+            g.writeStringField("event", a.activity.getEvent() != null ? a.activity.getEvent().toString() : null);
+            g.writeStringField("eventType", a.activity.getEventType() != null ? a.activity.getEventType().toString() : null);
+            g.writeEndObject();
+        } else {
+            g.writeNull();
+        }
+
+        writeRecords(a, g);
+        writeSession(a, g);
+        writeLaps(a, g);
+        g.writeBooleanField("gapReady", a.gapReady());
+
+        g.writeArrayFieldStart("eventTypes");
+        for (String type : a.eventTypes) g.writeString(type);
+        g.writeEndArray();
+
+        g.writeObjectFieldStart("developerFields");
+        g.writeNumberField("instances", a.devFieldInstances);
+        g.writeArrayFieldStart("fields");
+        for (var e : a.devFields.entrySet()) {
+            g.writeStartObject();
+            g.writeNumberField("developerDataIndex", e.getKey().developerDataIndex());
+            g.writeNumberField("fieldNum", e.getKey().fieldNum());
+            g.writeNumberField("count", e.getValue());
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+        g.writeEndObject();
+
+        writeRecordSamples(a, g);
+        g.writeEndObject();
+        g.flush();
+    }
+
+    /** A {@link FitScan.Census}: per message type its count and the fields its definitions include. */
+    static void write(FitScan.Census c, String file, JsonGenerator g) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("file", file);
+        g.writeNumberField("bytes", c.bytes());
+        g.writeNumberField("files", c.files());
+        g.writeNumberField("totalMessages", c.messages());
+        g.writeNumberField("definitions", c.definitions());
+
+        g.writeArrayFieldStart("messageCounts");
+        for (var e : c.messageCounts().entrySet()) {
+            int num = e.getKey();
+            g.writeStartObject();
+            g.writeNumberField("num", num);
+            g.writeStringField("name", FitScan.messageName(num));
+            g.writeNumberField("count", e.getValue());
+            g.writeArrayFieldStart("fields");
+            for (var f : c.fieldCounts().get(num).entrySet()) {
+                g.writeStartObject();
+                g.writeNumberField("num", f.getKey());
+                g.writeStringField("name", FitScan.fieldName(num, f.getKey()));
+                g.writeNumberField("count", f.getValue());
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+
+        g.writeArrayFieldStart("developerFields");
+        for (var e : c.developerFields().entrySet()) {
+            g.writeStartObject();
+            g.writeNumberField("developerDataIndex", e.getKey().developerDataIndex());
+            g.writeNumberField("fieldNum", e.getKey().fieldNum());
+            g.writeNumberField("count", e.getValue());
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+        g.writeEndObject();
+        g.flush();
+    }
+
+    // Count of RECORDs carrying each GAP field
+    private static void writeRecords(FitAnalysis a, JsonGenerator g) throws IOException {
+        g.writeObjectFieldStart("records");
+        g.writeNumberField("count", a.recordCount());
+        g.writeObjectFieldStart("withField");
+        g.writeNumberField("position", a.recordsWithPosition());
+        for (var e : FitAnalysis.RECORD_FIELDS.entrySet()) g.writeNumberField(e.getKey(), a.recordsWith(e.getValue()));
+        g.writeEndObject();
+        g.writeEndObject();
+    }
+
+    private static void writeSession(FitAnalysis a, JsonGenerator g) throws IOException {
+        g.writeFieldName("session");
+        SessionMesg s = a.session;
+        if (s == null) { g.writeNull(); return; }
+        g.writeStartObject();
+        writeNumber(g, "totalDistance", s.getTotalDistance());
+        writeNumber(g, "totalAscent", s.getTotalAscent());
+        writeNumber(g, "totalDescent", s.getTotalDescent());
+        writePresence(g, "present", FitAnalysis.SESSION_FIELDS, a::sessionHas);
+        g.writeEndObject();
+    }
+
+    // Per-lap values and missing fields, then which fields any lap has
+    private static void writeLaps(FitAnalysis a, JsonGenerator g) throws IOException {
+        g.writeObjectFieldStart("laps");
+        g.writeNumberField("count", a.laps.size());
+        int sumAscent = 0, sumDescent = 0;
+        g.writeArrayFieldStart("laps");
+        for (int i = 0; i < a.laps.size(); i++) {
+            LapMesg l = a.laps.get(i);
+            Integer ascent = l.getTotalAscent(), descent = l.getTotalDescent();
+            sumAscent  += ascent  != null ? ascent  : 0;
+            sumDescent += descent != null ? descent : 0;
+            g.writeStartObject();
+            g.writeNumberField("index", l.getMessageIndex() != null ? l.getMessageIndex() : i);
+            writeNumber(g, "ascent", ascent);
+            writeNumber(g, "descent", descent);
+            writeNumber(g, "avgGrade", l.getAvgGrade());
+            writeNumber(g, "avgVerticalRatio", l.getAvgVerticalRatio());
+            g.writeArrayFieldStart("missing");
+            for (var e : FitAnalysis.LAP_FIELDS.entrySet()) {
+                if (!FitAnalysis.hasValue(l, e.getValue())) g.writeString(e.getKey());
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+        g.writeNumberField("sumAscent", sumAscent);
+        g.writeNumberField("sumDescent", sumDescent);
+        writePresence(g, "anyPresent", FitAnalysis.LAP_FIELDS, a::anyLapHas);
+        g.writeEndObject();
+    }
+
+    // Every field of the first RECORDs, as the CLI's raw dump
+    private static void writeRecordSamples(FitAnalysis a, JsonGenerator g) throws IOException {
+        g.writeArrayFieldStart("recordSamples");
+        for (Mesg r : a.recordSamples) {
+            Long ts = r.getFieldLongValue(RecordMesg.TimestampFieldNum, 0, Fit.SUBFIELD_INDEX_MAIN_FIELD);
+            g.writeStartObject();
+            g.writeStringField("timestamp", ts != null ? iso(r.timestampToDateTime(ts)) : null);
+            g.writeArrayFieldStart("fields");
+            for (com.garmin.fit.Field f : r.getFields()) {
+                if (f.getNumValues() == 0) continue;
+                g.writeStartObject();
+                g.writeStringField("name", f.getName());
+                g.writeNumberField("num", f.getNum());
+                g.writeNumberField("values", f.getNumValues());
+                g.writeFieldName("value");
+                writeValue(g, f.getValue(0));
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+        g.writeNumberField("recordsNotShown", Math.max(0, a.recordCount() - a.recordSamples.size()));
+    }
+
+    @FunctionalInterface
+    private interface Presence { boolean has(int fieldNum); }
+
+    private static void writePresence(JsonGenerator g, String name, Map<String, Integer> fields, Presence p) throws IOException {
+        g.writeObjectFieldStart(name);
+        for (var e : fields.entrySet()) g.writeBooleanField(e.getKey(), p.has(e.getValue()));
+        g.writeEndObject();
+    }
+
+    private static void writeNumber(JsonGenerator g, String name, Number value) throws IOException {
+        g.writeFieldName(name);
+        writeValue(g, value);
+    }
+
+    private static void writeValue(JsonGenerator g, Object value) throws IOException {
+        if (value == null)                                    g.writeNull();
+        else if (value instanceof Float f)                    g.writeNumber(f);
+        else if (value instanceof Double d)                   g.writeNumber(d);
+        else if (value instanceof Number n)                   g.writeNumber(n.longValue());
+        else                                                  g.writeString(value.toString());
+    }
+
+    private static String iso(DateTime t) {
+        return t != null ? t.getDate().toInstant().toString() : null;
+    }
+}
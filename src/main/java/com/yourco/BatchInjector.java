@@ -0,0 +1,167 @@
+package com.yourco;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Runs many injections in parallel and writes the results to a ZIP as each one finishes.
+ *
+ * Entries are handed out to a fixed pool ({@code inject.batch.threads}, default one per core),
+ * whose threads run each injection on the shared {@link CpuBulkhead}, so a batch competes for
+ * the same CPU threads as {@code /inject}. Input is pulled lazily and at most twice the pool
+ * size is in flight, so a large ZIP upload is never fully expanded in memory. The calling
+ * thread is the only writer of the ZIP. A file that fails to inject, or that the bulkhead
+ * turns away, becomes a {@code <name>.error.txt} entry instead of failing the whole batch.
+ *
+ * Each entry reserves its heap from the {@link MemoryBudget} before it is decoded and holds it
+ * until its output has been written; an entry that gets no budget becomes an error entry too.
+ */
+@Service
+public class BatchInjector {
+
+    /** One input file: its name, raw bytes and the options to inject it with, or why it cannot be read. */
+    public record Entry(String name, byte[] data, InjectOptions opts, Exception error) {
+
+        public Entry(String name, byte[] data, InjectOptions opts) {
+            this(name, data, opts, null);
+        }
+
+        /** An input that failed before injecting; it becomes {@code <name>.error.txt}. */
+        static Entry failed(String name, Exception error) {
+            return new Entry(name, null, null, error);
+        }
+    }
+
+    private record Result(String name, byte[] fit, Exception error, MemoryBudget.Reservation held) {
+
+        static Result failed(String name, Exception error) {
+            return new Result(name, null, error, MemoryBudget.Reservation.NONE);
+        }
+    }
+
+    private final InjectionEngine engine;
+    private final CpuBulkhead cpu;
+    private final MemoryBudget memory;
+    private final ExecutorService pool;
+    private final int maxInFlight;
+
+    public BatchInjector(InjectionEngine engine, CpuBulkhead cpu, MemoryBudget memory,
+                         @Value("${inject.batch.threads:0}") int threads) {
+        int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.engine = engine;
+        this.cpu = cpu;
+        this.memory = memory;
+        this.pool = Executors.newFixedThreadPool(n);
+        this.maxInFlight = n * 2;
+    }
+
+    /** Injects every entry and writes a ZIP of the results to {@code out}, in completion order. */
+    public void run(Iterator<Entry> entries, OutputStream out) throws IOException {
+        var done = new ExecutorCompletionService<Result>(pool);
+        String tag = FitDiagnostics.tag();
+        var names = new HashSet<String>();
+        int inFlight = 0;
+        try (var zip = new ZipOutputStream(out)) {
+            while (entries.hasNext()) {
+                while (inFlight >= maxInFlight) { Result r = take(done); inFlight--; write(zip, r, names); }
+                Entry e = entries.next();
+                done.submit(() -> inject(e, tag));
+                inFlight++;
+                for (Future<Result> f; (f = done.poll()) != null; ) { inFlight--; write(zip, get(f), names); }
+            }
+            while (inFlight > 0) { Result r = take(done); inFlight--; write(zip, r, names); }
+        } finally {
+            // Writing failed (e.g. the client went away, which also interrupts this thread): the
+            // entries still in flight give their budget back once they finish
+            boolean interrupted = Thread.interrupted();
+            while (inFlight > 0) {
+                try {
+                    Future<Result> f = done.take();
+                    inFlight--;
+                    f.get().held().close();
+                } catch (ExecutionException | CancellationException ignored) {
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    // Diagnostics are tagged with the batch request and the entry's name
+    private Result inject(Entry e, String tag) {
+        if (e.error() != null) return Result.failed(e.name(), e.error());
+        String previous = FitDiagnostics.tag(tag != null ? tag + "/" + e.name() : e.name());
+        var held = MemoryBudget.Reservation.NONE;
+        try {
+            held = memory.reserve(e.data(), e.data().length);
+            byte[] fit = cpu.call(FitMetrics.BATCH, () -> {
+                var out = new ByteArrayOutputStream(Math.max(e.data().length, 32));
+                engine.inject(e.data(), out, e.opts());
+                return out.toByteArray();
+            });
+            return new Result(InjectController.outputName(e.name(), e.opts().grade()), fit, null, held);
+        } catch (Exception ex) {
+            held.close();
+            if (ex instanceof InterruptedException) Thread.currentThread().interrupt();
+            return Result.failed(e.name(), ex);
+        } finally {
+            FitDiagnostics.tag(previous);
+        }
+    }
+
+    private static void write(ZipOutputStream zip, Result r, Set<String> names) throws IOException {
+        String name = r.error() == null ? r.name() : r.name() + ".error.txt";
+        // Two inputs can map to the same output name; keep both
+        String unique = name;
+        for (int i = 2; !names.add(unique); i++) {
+            int dot = name.lastIndexOf('.');
+            unique = dot > 0 ? name.substring(0, dot) + "_" + i + name.substring(dot) : name + "_" + i;
+        }
+        try {
+            zip.putNextEntry(new ZipEntry(unique));
+            zip.write(r.error() == null ? r.fit() : String.valueOf(r.error().getMessage()).getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.flush();
+        } finally {
+            r.held().close();
+        }
+    }
+
+    private static Result take(CompletionService<Result> done) throws IOException {
+        try {
+            return get(done.take());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch interrupted", e);
+        }
+    }
+
+    private static Result get(Future<Result> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        pool.shutdownNow();
+    }
+}
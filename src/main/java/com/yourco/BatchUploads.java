@@ -0,0 +1,127 @@
+package com.yourco;
+
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Turns the parts of a batch upload into {@link BatchInjector.Entry}s, lazily.
+ *
+ * A part is either a single FIT file or a ZIP (by {@code .zip} name or the {@code PK}
+ * signature); ZIPs are expanded entry by entry as the batch pulls from the iterator,
+ * skipping directories and anything that is not a {@code .fit}.
+ *
+ * Expanded sizes are bounded, so a small ZIP bomb cannot fill the heap. An entry that inflates
+ * past {@code maxEntryBytes} becomes a failed entry (its {@code .error.txt}); once the batch
+ * has inflated {@code maxTotalBytes} in all, the rest of it is skipped and a final failed
+ * entry says so. Every inflated byte counts, including the tail of an oversized entry.
+ */
+final class BatchUploads implements Iterator<BatchInjector.Entry> {
+
+    private final Iterator<MultipartFile> parts;
+    private final Function<String, InjectOptions> optsFor;
+    private final long maxEntryBytes, maxTotalBytes;
+    private ZipInputStream zip;
+    private BatchInjector.Entry next;
+    private long total;
+    private boolean stopped;
+
+    private BatchUploads(List<MultipartFile> parts, Function<String, InjectOptions> optsFor,
+                         long maxEntryBytes, long maxTotalBytes) {
+        this.parts = parts.iterator();
+        this.optsFor = optsFor;
+        this.maxEntryBytes = maxEntryBytes;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    /**
+     * @param optsFor       options for an input, by its base file name
+     * @param maxEntryBytes largest file, as uploaded or inflated from a ZIP
+     * @param maxTotalBytes most bytes read and inflated over the whole batch
+     */
+    static Iterator<BatchInjector.Entry> entries(List<MultipartFile> parts, Function<String, InjectOptions> optsFor,
+                                                 long maxEntryBytes, long maxTotalBytes) {
+        return new BatchUploads(parts, optsFor, maxEntryBytes, maxTotalBytes);
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (next == null) {
+                if (stopped) {
+                    return false;
+                } else if (zip != null) {
+                    ZipEntry ze = zip.getNextEntry();
+                    if (ze == null) { zip.close(); zip = null; continue; }
+                    String name = baseName(ze.getName());
+                    if (ze.isDirectory() || name.startsWith(".") || !name.toLowerCase(Locale.ROOT).endsWith(".fit")) continue;
+                    next = entry(name, zip);
+                } else if (parts.hasNext()) {
+                    MultipartFile part = parts.next();
+                    if (part.isEmpty()) continue;
+                    String name = baseName(Objects.requireNonNullElse(part.getOriginalFilename(), "upload.fit"));
+                    var in = new BufferedInputStream(part.getInputStream());
+                    if (isZip(name, in)) { zip = new ZipInputStream(in); continue; }
+                    try (in) { next = entry(name, in); }
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public BatchInjector.Entry next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        var e = next;
+        next = null;
+        return e;
+    }
+
+    // The file's bytes, or a failed entry when it is too large or the batch has run out of room
+    private BatchInjector.Entry entry(String name, InputStream in) throws IOException {
+        var out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        boolean tooLarge = false;
+        for (int k; (k = in.read(buf)) > 0; ) {
+            total += k;
+            if (total > maxTotalBytes) return stop();
+            if (tooLarge) continue;     // inflate the rest of it only to count it
+            if (out.size() + k > maxEntryBytes) {
+                tooLarge = true;
+                out = null;
+            } else {
+                out.write(buf, 0, k);
+            }
+        }
+        return tooLarge
+             ? BatchInjector.Entry.failed(name, new IllegalArgumentException("File is larger than " + maxEntryBytes + " bytes"))
+             : new BatchInjector.Entry(name, out.toByteArray(), optsFor.apply(name));
+    }
+
+    private BatchInjector.Entry stop() throws IOException {
+        stopped = true;
+        if (zip != null) { zip.close(); zip = null; }
+        return BatchInjector.Entry.failed("batch", new IllegalArgumentException(
+                "Batch expands to more than " + maxTotalBytes + " bytes; the remaining files were skipped"));
+    }
+
+    private static boolean isZip(String name, BufferedInputStream in) throws IOException {
+        if (name.toLowerCase(Locale.ROOT).endsWith(".zip")) return true;
+        in.mark(4);
+        byte[] sig = in.readNBytes(4);
+        in.reset();
+        return sig.length == 4 && sig[0] == 'P' && sig[1] == 'K' && sig[2] == 3 && sig[3] == 4;
+    }
+
+    static String baseName(String path) {
+        return path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+    }
+}
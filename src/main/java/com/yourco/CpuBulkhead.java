@@ -0,0 +1,158 @@
+package com.yourco;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool for the CPU-heavy part of a request (decode, transform, sizing, analyse).
+ *
+ * Request threads are virtual and only wait here; the work itself runs on a fixed pool
+ * ({@code inject.cpu.threads}, default one per core) behind a short queue
+ * ({@code inject.cpu.queue}). When the queue is full, or a task has waited longer than
+ * {@code inject.cpu.max-wait} by the time a thread is free, the request fails at once with
+ * {@link OverloadedException} (503) instead of slowing every admitted request down.
+ *
+ * Work that decodes a request body as it arrives cannot go to the pool: it would hold a pool
+ * thread at the client's pace. It runs on its own request thread through {@link #callInline}
+ * instead, at most {@code inject.cpu.stream-threads} at once (default the pool size), with the
+ * same wait limit.
+ *
+ * Pool threads are named {@code fit-cpu-N}, and carry the caller's {@link FitDiagnostics#tag}
+ * while they run its work.
+ *
+ * Metrics: {@code fit.cpu.queue}, {@code fit.cpu.active} and {@code fit.cpu.inline} gauges,
+ * the {@code fit.cpu.wait} timer (time queued, per {@code op}) and {@code fit.cpu.rejected}
+ * (per {@code reason}).
+ */
+@Service
+public class CpuBulkhead {
+
+    private final ThreadPoolExecutor pool;
+    private final Semaphore inline;
+    private final int inlineSlots;
+    private final long maxWaitNanos;
+    private final MeterRegistry registry;
+    private final Map<String, Timer> waitTimers = new ConcurrentHashMap<>();
+    private final Counter queueFull, waitExpired, inlineBusy;
+
+    public CpuBulkhead(MeterRegistry registry,
+                       @Value("${inject.cpu.threads:0}") int threads,
+                       @Value("${inject.cpu.queue:16}") int queue,
+                       @Value("${inject.cpu.max-wait:2s}") Duration maxWait,
+                       @Value("${inject.cpu.stream-threads:0}") int streamThreads) {
+        int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.inlineSlots = streamThreads > 0 ? streamThreads : n;
+        this.inline = new Semaphore(inlineSlots);
+        var threadNo = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(n, n, 0L, TimeUnit.MILLISECONDS,
+                queue > 0 ? new ArrayBlockingQueue<>(queue) : new SynchronousQueue<>(),
+                r -> {
+                    var t = new Thread(r, "fit-cpu-" + threadNo.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.maxWaitNanos = maxWait.toNanos();
+        this.registry = registry;
+        Gauge.builder("fit.cpu.queue", pool, p -> p.getQueue().size())
+             .description("FIT tasks waiting for a CPU thread").register(registry);
+        Gauge.builder("fit.cpu.active", pool, ThreadPoolExecutor::getActiveCount)
+             .description("FIT tasks running on a CPU thread").register(registry);
+        Gauge.builder("fit.cpu.inline", inline, s -> inlineSlots - s.availablePermits())
+             .description("FIT decodes running on their request thread").register(registry);
+        this.queueFull   = rejected("queue-full");
+        this.waitExpired = rejected("wait-expired");
+        this.inlineBusy  = rejected("stream-busy");
+    }
+
+    /**
+     * Runs {@code work} on the pool and waits for its result; its exceptions are rethrown as is.
+     *
+     * @throws OverloadedException if the queue is full or the task waited past {@code inject.cpu.max-wait}
+     */
+    <T> T call(String op, Callable<T> work) throws Exception {
+        long queued = System.nanoTime();
+        String tag = FitDiagnostics.tag();
+        Future<T> f;
+        try {
+            f = pool.submit(() -> {
+                long waited = System.nanoTime() - queued;
+                waitTimer(op).record(waited, TimeUnit.NANOSECONDS);
+                if (waited > maxWaitNanos) {
+                    waitExpired.increment();
+                    throw new OverloadedException("Server busy: waited " + waited / 1_000_000 + " ms for a CPU thread");
+                }
+                String previous = FitDiagnostics.tag(tag);
+                try {
+                    return work.call();
+                } finally {
+                    FitDiagnostics.tag(previous);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queueFull.increment();
+            throw new OverloadedException("Server busy: CPU queue full");
+        }
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw (Error) e.getCause();
+        } catch (InterruptedException e) {
+            f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs {@code work} on the calling thread once one of the {@code inject.cpu.stream-threads}
+     * slots is free, for work that reads its input at the client's pace.
+     *
+     * @throws OverloadedException if no slot frees up within {@code inject.cpu.max-wait}
+     */
+    <T> T callInline(String op, Callable<T> work) throws Exception {
+        long queued = System.nanoTime();
+        if (!inline.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS)) {
+            inlineBusy.increment();
+            throw new OverloadedException("Server busy: too many uploads decoding");
+        }
+        try {
+            waitTimer(op).record(System.nanoTime() - queued, TimeUnit.NANOSECONDS);
+            return work.call();
+        } finally {
+            inline.release();
+        }
+    }
+
+    private Timer waitTimer(String op) {
+        Timer t = waitTimers.get(op);
+        if (t != null) return t;
+        return waitTimers.computeIfAbsent(op, k -> Timer.builder("fit.cpu.wait")
+                    .description("Time a FIT task waited for a CPU thread")
+                    .tag("op", k)
+                    .publishPercentileHistogram()
+                    .register(registry));
+    }
+
+    private Counter rejected(String reason) {
+        return Counter.builder("fit.cpu.rejected")
+                      .description("FIT requests turned away with 503")
+                      .tag("reason", reason)
+                      .register(registry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        pool.shutdownNow();
+    }
+}
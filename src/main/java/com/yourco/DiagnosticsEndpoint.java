@@ -0,0 +1,27 @@
+package com.yourco;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * {@code /actuator/fitdiagnostics}: the latest {@link FitDiagnostics} events, newest first.
+ * Keeps the last {@code inject.diagnostics.buffer} of them (0 keeps none); only events at a
+ * level the {@code com.yourco.fit} logger has enabled are kept.
+ */
+@Component
+@Endpoint(id = "fitdiagnostics")
+public class DiagnosticsEndpoint {
+
+    public DiagnosticsEndpoint(@Value("${inject.diagnostics.buffer:200}") int buffer) {
+        FitDiagnostics.keep(buffer);
+    }
+
+    @ReadOperation
+    public List<FitDiagnostics.Event> recent() {
+        return FitDiagnostics.recent();
+    }
+}
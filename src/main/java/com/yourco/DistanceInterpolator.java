@@ -0,0 +1,129 @@
+package com.yourco;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Fills in RECORD distances that the source file left out.
+ *
+ * Works on primitive columns (FIT timestamps and distances, {@code NaN} = missing) with a
+ * single two-pointer sweep: the known points are compacted once, then every record walks
+ * a cursor forward to its surrounding known pair. Cost is O(records + known points) for a
+ * file in time order.
+ *
+ * Rules (unchanged from the original TreeMap implementation):
+ *  • before the first known point - constant pace from the first record (distance 0);
+ *  • between known points        - linear in time;
+ *  • after the last known point  - pace of the last two known points, or, with a single
+ *    known point, spread the larger of it and the session total over the whole activity;
+ *  • no known points at all      - spread the session total evenly over time.
+ * Records that carry their own distance always keep it, also when timestamps repeat.
+ *
+ * Known points are used in time order, as the original did. They are sorted only when the
+ * file's clock steps backwards; "first" and "last" record stay the first and last in file order.
+ */
+final class DistanceInterpolator {
+
+    private DistanceInterpolator() {}
+
+    /**
+     * Replaces every {@code NaN} in {@code dist[0..n)} with an interpolated distance.
+     *
+     * @param time          record timestamps, in file order
+     * @param dist          record distances, {@code NaN} where the record has none
+     * @param n             number of records in use
+     * @param sessionTotal  SESSION total distance, or 0 if unknown
+     */
+    static void fill(long[] time, float[] dist, int n, float sessionTotal) {
+        if (n == 0) return;
+
+        // Compact the known points
+        int k = 0;
+        for (int i = 0; i < n; i++) if (!Float.isNaN(dist[i])) k++;
+        long[]  kt = new long[k];
+        float[] kd = new float[k];
+        float maxKnown = 0f;
+        for (int i = 0, j = 0; i < n; i++) {
+            if (Float.isNaN(dist[i])) continue;
+            kt[j] = time[i]; kd[j] = dist[i]; j++;
+            if (dist[i] > maxKnown) maxKnown = dist[i];
+        }
+        if (!ascending(kt)) sortByTime(kt, kd);
+
+        long firstTime = time[0], lastTime = time[n - 1];
+
+        if (k == 0) {
+            // No known distances in records: distribute the session total by timestamp
+            long totalDuration = lastTime - firstTime;
+            for (int i = 0; i < n; i++) {
+                dist[i] = (sessionTotal > 0 && totalDuration > 0)
+                        ? sessionTotal * (time[i] - firstTime) / totalDuration
+                        : 0f;
+            }
+            return;
+        }
+
+        long firstKnownTime = kt[0], lastKnownTime = kt[k - 1];
+        float firstKnownDist = kd[0], lastKnownDist = kd[k - 1];
+
+        // Pace after the last known point, from the last two distinct known timestamps
+        float tailPace = 0f;
+        if (k >= 2) {
+            int p = k - 2;
+            while (p > 0 && kt[p] == lastKnownTime) p--;
+            long lastTimeDiff = lastKnownTime - kt[p];
+            if (lastTimeDiff > 0) tailPace = (lastKnownDist - kd[p]) / lastTimeDiff; // meters per timestamp unit
+        }
+        float spreadTotal = Math.max(maxKnown, sessionTotal);
+
+        int j = 0; // kt[j] <= t < kt[j + 1] for the record being filled
+        for (int i = 0; i < n; i++) {
+            if (!Float.isNaN(dist[i])) continue;
+            long t = time[i];
+
+            if (t < firstKnownTime) {
+                // Before first known distance - assume constant pace
+                long firstTimeDiff = firstKnownTime - firstTime;
+                dist[i] = firstTimeDiff > 0 ? firstKnownDist * (t - firstTime) / firstTimeDiff : 0f;
+            } else if (t > lastKnownTime) {
+                if (k >= 2) {
+                    // After last known distance - extrapolate with last known pace
+                    dist[i] = lastKnownDist + tailPace * (t - lastKnownTime);
+                } else {
+                    // Only one known point - linear extrapolation to the best total
+                    long totalTimeDiff = lastTime - firstTime;
+                    dist[i] = totalTimeDiff > 0 ? spreadTotal * (t - firstTime) / totalTimeDiff : spreadTotal;
+                }
+            } else {
+                // Between known distances - move the cursor, never rescanning from the start
+                while (j + 1 < k && kt[j + 1] <= t) j++;
+                while (j > 0 && kt[j] > t) j--;
+                if (kt[j] == t || j + 1 >= k) {
+                    dist[i] = kd[j];
+                } else {
+                    long totalDiff = kt[j + 1] - kt[j];
+                    float ratio = (float)(t - kt[j]) / totalDiff;
+                    dist[i] = kd[j] + ratio * (kd[j + 1] - kd[j]);
+                }
+            }
+        }
+    }
+
+    private static boolean ascending(long[] t) {
+        for (int i = 1; i < t.length; i++) if (t[i] < t[i - 1]) return false;
+        return true;
+    }
+
+    // Stable sort of the known points by timestamp; only for files whose clock steps backwards
+    private static void sortByTime(long[] kt, float[] kd) {
+        Integer[] order = new Integer[kt.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingLong(i -> kt[i]));
+        long[] t = kt.clone();
+        float[] d = kd.clone();
+        for (int i = 0; i < order.length; i++) {
+            kt[i] = t[order[i]];
+            kd[i] = d[order[i]];
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.yourco;
+
+import com.garmin.fit.*;
+
+import java.util.*;
+
+/**
+ * What {@code --analyse} and {@code POST /analyse} report about one file, rendered either as
+ * text (the CLI) or as JSON ({@link AnalysisJson}).
+ *
+ * Filled as a {@link MesgListener} while the file decodes, in one pass: RECORDs only bump a
+ * presence counter per field and developer fields a count per (index, field), so nothing
+ * per record is kept beyond the first {@link #SAMPLE_COUNT}. Memory stays flat however long
+ * the activity is; only the LAP messages (one per lap) are held for the per-lap table.
+ */
+final class FitAnalysis implements MesgListener {
+
+    /** RECORDs kept whole for the raw field dump. */
+    static final int SAMPLE_COUNT = 5;
+
+    /** SESSION fields checked for GAP readiness, by FIT field name. */
+    static final Map<String, Integer> SESSION_FIELDS = fields(
+            "start_position_lat",      SessionMesg.StartPositionLatFieldNum,
+            "start_position_long",     SessionMesg.StartPositionLongFieldNum,
+            "end_position_lat",        SessionMesg.EndPositionLatFieldNum,
+            "end_position_long",       SessionMesg.EndPositionLongFieldNum,
+            "total_distance",          SessionMesg.TotalDistanceFieldNum,
+            "total_ascent",            SessionMesg.TotalAscentFieldNum,
+            "total_descent",           SessionMesg.TotalDescentFieldNum,
+            "avg_speed",               SessionMesg.AvgSpeedFieldNum,
+            "max_speed",               SessionMesg.MaxSpeedFieldNum,
+            "enhanced_avg_speed",      SessionMesg.EnhancedAvgSpeedFieldNum,
+            "enhanced_max_speed",      SessionMesg.EnhancedMaxSpeedFieldNum,
+            "min_altitude",            SessionMesg.MinAltitudeFieldNum,
+            "max_altitude",            SessionMesg.MaxAltitudeFieldNum,
+            "enhanced_min_altitude",   SessionMesg.EnhancedMinAltitudeFieldNum,
+            "enhanced_max_altitude",   SessionMesg.EnhancedMaxAltitudeFieldNum,
+            "total_fractional_ascent", SessionMesg.TotalFractionalAscentFieldNum,
+            "total_fractional_descent",SessionMesg.TotalFractionalDescentFieldNum,
+            "avg_grade",               SessionMesg.AvgGradeFieldNum,
+            "avg_vertical_ratio",      SessionMesg.AvgVerticalRatioFieldNum);
+
+    /** LAP fields checked on every lap, by FIT field name. */
+    static final Map<String, Integer> LAP_FIELDS = fields(
+            "avg_speed",               LapMesg.AvgSpeedFieldNum,
+            "max_speed",               LapMesg.MaxSpeedFieldNum,
+            "enhanced_avg_speed",      LapMesg.EnhancedAvgSpeedFieldNum,
+            "enhanced_max_speed",      LapMesg.EnhancedMaxSpeedFieldNum,
+            "min_altitude",            LapMesg.MinAltitudeFieldNum,
+            "max_altitude",            LapMesg.MaxAltitudeFieldNum,
+            "enhanced_min_altitude",   LapMesg.EnhancedMinAltitudeFieldNum,
+            "enhanced_max_altitude",   LapMesg.EnhancedMaxAltitudeFieldNum,
+            "total_fractional_ascent", LapMesg.TotalFractionalAscentFieldNum,
+            "total_fractional_descent",LapMesg.TotalFractionalDescentFieldNum,
+            "avg_grade",               LapMesg.AvgGradeFieldNum,
+            "avg_vertical_ratio",      LapMesg.AvgVerticalRatioFieldNum);
+
+    /** RECORD presence columns in report order, by FIT field name (position = lat and long both present). */
+    static final Map<String, Integer> RECORD_FIELDS = fields(
+            "distance",                RecordColumns.DISTANCE,
+            "altitude",                RecordColumns.ALTITUDE,
+            "enhanced_altitude",       RecordColumns.ENHANCED_ALTITUDE,
+            "speed",                   RecordColumns.SPEED,
+            "enhanced_speed",          RecordColumns.ENHANCED_SPEED,
+            "grade",                   RecordColumns.GRADE,
+            "vertical_ratio",          RecordColumns.VERTICAL_RATIO);
+
+    /** One developer field definition, as (developer data index, field number). */
+    record DevFieldKey(short developerDataIndex, int fieldNum) {}
+
+    final String file;
+    final Map<Integer, Long> msgCounts = new TreeMap<>();
+    final Map<Integer, String> msgNames = new HashMap<>();
+    final Set<String> subSportSources = new HashSet<>();
+    final List<LapMesg> laps = new ArrayList<>();
+    final Set<String> eventTypes = new HashSet<>();
+    final List<Mesg> recordSamples = new ArrayList<>();
+    final Map<DevFieldKey, Long> devFields = new HashMap<>();
+    FileIdMesg fileId;
+    SportMesg sport;
+    SessionMesg session;
+    ActivityMesg activity;
+    long totalMessages, eventCount, devFieldInstances;
+
+    private int recordCount;
+    private final int[] recordsWith = new int[RecordColumns.COLUMNS];
+    private int recordsWithPosition;
+    private final Set<Integer> lapFieldsSeen = new HashSet<>();
+
+    FitAnalysis(String file) {
+        this.file = file;
+    }
+
+    @Override
+    public void onMesg(Mesg m) {
+        totalMessages++;
+        msgCounts.merge(m.getNum(), 1L, Long::sum);
+        msgNames.putIfAbsent(m.getNum(), m.getName());
+        switch (m.getNum()) {
+            case MesgNum.RECORD    -> addRecord(m);
+            case MesgNum.FILE_ID   -> fileId   = new FileIdMesg(m);
+            case MesgNum.SPORT     -> sport    = new SportMesg(m);
+            case MesgNum.SESSION   -> session  = new SessionMesg(m);
+            case MesgNum.LAP       -> addLap(new LapMesg(m));
+            case MesgNum.EVENT     -> addEvent(new EventMesg(m));
+            case MesgNum.ACTIVITY  -> activity = new ActivityMesg(m);
+        }
+        if (m.getNum() != MesgNum.RECORD && m.getField("sub_sport") != null) { subSportSources.add(m.getName()); }
+        for (DeveloperField df : m.getDeveloperFields()) {
+            if (df == null) continue;
+            devFieldInstances++;
+            devFields.merge(new DevFieldKey(df.getDeveloperDataIndex(), df.getNum()), 1L, Long::sum);
+        }
+    }
+
+    // One walk over the record's fields; only the counters survive it
+    private void addRecord(Mesg m) {
+        recordCount++;
+        if (recordSamples.size() < SAMPLE_COUNT) recordSamples.add(m);
+        int mask = 0;
+        for (com.garmin.fit.Field f : m.getFields()) {
+            int column = RecordColumns.column(f.getNum());
+            if (column >= 0 && f.getNumValues() > 0 && f.getValue(0) != null) mask |= 1 << column;
+        }
+        for (int c = 0; mask >>> c != 0; c++) if ((mask & (1 << c)) != 0) recordsWith[c]++;
+        int position = (1 << RecordColumns.POSITION_LAT) | (1 << RecordColumns.POSITION_LONG);
+        if ((mask & position) == position) recordsWithPosition++;
+    }
+
+    private void addLap(LapMesg l) {
+        laps.add(l);
+        for (com.garmin.fit.Field f : l.getFields()) {
+            if (f.getNumValues() > 0 && f.getValue(0) != null) lapFieldsSeen.add(f.getNum());
+        }
+    }
+
+    private void addEvent(EventMesg e) {
+        eventCount++;
+        if (e.getEventType() != null && e.getEvent() != null) {
+            eventTypes.add(e.getEventType().toString() + " (" + e.getEvent().toString() + ")");
+        }
+    }
+
+    // --- File / sport ---
+
+    String fileType()     { return fileId != null && fileId.getType() != null ? fileId.getType().toString() : null; }
+    String manufacturer() { return fileId != null && fileId.getManufacturer() != null ? Manufacturer.getStringFromValue(fileId.getManufacturer()) : null; }
+    String product()      { return fileId != null && fileId.getProduct() != null ? String.valueOf(fileId.getProduct()) : null; }
+
+    Sport sport()         { return sport != null ? sport.getSport() : (session != null ? session.getSport() : null); }
+    SubSport subSport()   { return sport != null ? sport.getSubSport() : (session != null ? session.getSubSport() : null); }
+
+    /** Sport profile name, or empty when neither SPORT nor SESSION names one. */
+    String profileName() {
+        String name = (sport != null && sport.getName() != null) ? sport.getName() : "";
+        if (name.isEmpty() && session != null && session.getSportProfileName() != null) name = session.getSportProfileName();
+        return name;
+    }
+
+    // --- RECORD presence ---
+
+    int recordCount()              { return recordCount; }
+    long recordsWith(int column)   { return recordsWith[column]; }
+    long recordsWithPosition()     { return recordsWithPosition; }
+
+    /** Every RECORD has position, enhanced altitude and enhanced speed. */
+    boolean gapReady() {
+        int n = recordCount();
+        return n > 0 && recordsWith(RecordColumns.ENHANCED_ALTITUDE) == n
+                     && recordsWith(RecordColumns.ENHANCED_SPEED) == n
+                     && recordsWithPosition() == n;
+    }
+
+    // --- SESSION / LAP / EVENT ---
+
+    boolean sessionHas(int fieldNum)  { return hasValue(session, fieldNum); }
+    boolean anyLapHas(int fieldNum)   { return lapFieldsSeen.contains(fieldNum); }
+
+    static boolean hasValue(Mesg msg, int fieldNum) {
+        if (msg == null) return false;
+        com.garmin.fit.Field f = msg.getField(fieldNum);
+        return f != null && f.getNumValues() > 0 && f.getValue(0) != null;
+    }
+
+    private static Map<String, Integer> fields(Object... nameNum) {
+        var m = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < nameNum.length; i += 2) m.put((String) nameNum[i], (Integer) nameNum[i + 1]);
+        return Collections.unmodifiableMap(m);
+    }
+}
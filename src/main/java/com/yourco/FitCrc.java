@@ -0,0 +1,28 @@
+package com.yourco;
+
+/**
+ * FIT file CRC (CRC-16/ARC, as {@code com.garmin.fit.CRC}) with a 256-entry table, so a
+ * whole buffer is checked one byte per lookup instead of the SDK's two nibbles per byte.
+ */
+final class FitCrc {
+
+    private static final int[] TABLE = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            TABLE[i] = crc;
+        }
+    }
+
+    private FitCrc() {}
+
+    static int update(int crc, int b) {
+        return (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+
+    static int update(int crc, byte[] buf, int off, int len) {
+        for (int i = off, end = off + len; i < end; i++) crc = (crc >>> 8) ^ TABLE[(crc ^ buf[i]) & 0xFF];
+        return crc;
+    }
+}
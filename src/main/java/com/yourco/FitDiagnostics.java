@@ -0,0 +1,146 @@
+package com.yourco;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Diagnostics from the FIT core: decode and encode failures, files missing messages, per-run
+ * detail. Level-gated, with SLF4J-style {@code {}} placeholders that are only filled in once
+ * a level is known to be on, so a disabled call costs one check and no formatting. The
+ * overloads take fixed arguments so no varargs array is built either.
+ *
+ * In the app, events go to the SLF4J logger {@code com.yourco.fit} (level set with
+ * {@code logging.level.com.yourco.fit}). Once {@link #keep} has been called, the recent events
+ * are also kept in a ring for {@code /actuator/fitdiagnostics}. The CLI may run with only fit.jar
+ * on the class path, so SLF4J is touched only when it is present. Without it, warnings go to
+ * stderr, info to stdout, and debug is off.
+ *
+ * Each event carries the {@link #tag} of the thread that reported it: the request id in the
+ * app (see {@link RequestStartFilter}), carried over to the pools that work for the request.
+ */
+final class FitDiagnostics {
+
+    enum Level { DEBUG, INFO, WARN }
+
+    /** One diagnostic, as kept for the actuator endpoint; {@code request} is null outside a request. */
+    record Event(Instant time, Level level, String thread, String request, String message) {}
+
+    // Logger name for everything the FIT core reports
+    static final String LOGGER = "com.yourco.fit";
+
+    private static final boolean SLF4J = isPresent("org.slf4j.LoggerFactory");
+
+    private static volatile Ring ring;   // null: events are not kept
+
+    private static final ThreadLocal<String> TAG = new ThreadLocal<>();
+
+    private FitDiagnostics() {}
+
+    static boolean debugEnabled() { return enabled(Level.DEBUG); }
+
+    static void debug(String format, Object arg)              { if (enabled(Level.DEBUG)) emit(Level.DEBUG, format, arg, null); }
+    static void debug(String format, Object arg1, Object arg2) { if (enabled(Level.DEBUG)) emit(Level.DEBUG, format, arg1, arg2); }
+    static void info(String format, Object arg)               { if (enabled(Level.INFO))  emit(Level.INFO, format, arg, null); }
+    static void warn(String message)                          { if (enabled(Level.WARN))  emit(Level.WARN, message, null, null); }
+    static void warn(String format, Object arg)               { if (enabled(Level.WARN))  emit(Level.WARN, format, arg, null); }
+    static void warn(String format, Object arg1, Object arg2)  { if (enabled(Level.WARN))  emit(Level.WARN, format, arg1, arg2); }
+
+    /** The request the current thread works for, or null. */
+    static String tag() {
+        return TAG.get();
+    }
+
+    /** Tags the current thread's events with {@code request} (null clears it); returns the tag it replaces. */
+    static String tag(String request) {
+        String previous = TAG.get();
+        if (request != null) TAG.set(request);
+        else TAG.remove();
+        return previous;
+    }
+
+    /** Keeps the last {@code capacity} events for {@link #recent}; 0 stops keeping them. */
+    static void keep(int capacity) {
+        ring = capacity > 0 ? new Ring(capacity) : null;
+    }
+
+    /** Kept events, newest first. */
+    static List<Event> recent() {
+        Ring r = ring;
+        return r != null ? r.recent() : List.of();
+    }
+
+    private static boolean enabled(Level level) {
+        return SLF4J ? Slf4j.enabled(level) : level != Level.DEBUG;
+    }
+
+    private static void emit(Level level, String format, Object arg1, Object arg2) {
+        String message = format(format, arg1, arg2);
+        if (SLF4J) Slf4j.log(level, message);
+        else (level == Level.WARN ? System.err : System.out).println(message);
+        Ring r = ring;
+        if (r != null) r.add(new Event(Instant.now(), level, Thread.currentThread().getName(), TAG.get(), message));
+    }
+
+    // Fills the first two {} with the arguments, as SLF4J would
+    static String format(String format, Object arg1, Object arg2) {
+        int i = format.indexOf("{}");
+        if (i < 0) return format;
+        var sb = new StringBuilder(format.length() + 32);
+        sb.append(format, 0, i).append(arg1);
+        int j = format.indexOf("{}", i + 2);
+        if (j < 0) return sb.append(format, i + 2, format.length()).toString();
+        return sb.append(format, i + 2, j).append(arg2).append(format, j + 2, format.length()).toString();
+    }
+
+    private static boolean isPresent(String className) {
+        try {
+            Class.forName(className, false, FitDiagnostics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    // Only loaded once SLF4J is known to be present
+    private static final class Slf4j {
+        static final org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(LOGGER);
+
+        static boolean enabled(Level level) {
+            return switch (level) {
+                case DEBUG -> LOG.isDebugEnabled();
+                case INFO  -> LOG.isInfoEnabled();
+                case WARN  -> LOG.isWarnEnabled();
+            };
+        }
+
+        static void log(Level level, String message) {
+            switch (level) {
+                case DEBUG -> LOG.debug(message);
+                case INFO  -> LOG.info(message);
+                case WARN  -> LOG.warn(message);
+            }
+        }
+    }
+
+    // Fixed-size ring of the latest events; only enabled events get here, so a lock is cheap enough
+    private static final class Ring {
+        private final Event[] events;
+        private int next;
+        private boolean full;
+
+        Ring(int capacity) { this.events = new Event[capacity]; }
+
+        synchronized void add(Event e) {
+            events[next] = e;
+            if (++next == events.length) { next = 0; full = true; }
+        }
+
+        synchronized List<Event> recent() {
+            int n = full ? events.length : next;
+            var out = new ArrayList<Event>(n);
+            for (int k = 1; k <= n; k++) out.add(events[Math.floorMod(next - k, events.length)]);
+            return out;
+        }
+    }
+}
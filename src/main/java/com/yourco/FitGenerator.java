@@ -0,0 +1,207 @@
+package com.yourco;
+
+import com.garmin.fit.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Synthetic treadmill activities for benchmarks and load tests: FILE_ID, timer START,
+ * RECORDs at a fixed pace, evenly split LAPs, SESSION and ACTIVITY, as a watch would
+ * write them, optionally with HRV beat intervals and developer fields on every RECORD.
+ * The output depends only on the {@link Spec}, so runs are reproducible.
+ *
+ * Also a small CLI for writing workload files:
+ * {@code java -cp fit-injector.jar:fit.jar com.yourco.FitGenerator out.fit [--seconds n] ...}
+ */
+public final class FitGenerator {
+
+    /**
+     * @param seconds        activity duration
+     * @param sampleEvery    seconds between RECORDs (1 = 1 Hz)
+     * @param laps           number of LAP messages (at least 1)
+     * @param distanceEvery  write the distance field on every n-th RECORD (1 = all, 0 = none)
+     * @param hrv            write HRV messages with the beat-to-beat intervals
+     * @param devFields      developer fields per RECORD (0 = none)
+     */
+    public record Spec(int seconds, int sampleEvery, int laps, int distanceEvery, boolean hrv, int devFields) {
+        public Spec {
+            if (seconds <= 0)       throw new IllegalArgumentException("seconds must be positive: " + seconds);
+            if (sampleEvery <= 0)   throw new IllegalArgumentException("sampleEvery must be positive: " + sampleEvery);
+            if (laps <= 0)          throw new IllegalArgumentException("laps must be positive: " + laps);
+            if (distanceEvery < 0)  throw new IllegalArgumentException("distanceEvery must not be negative: " + distanceEvery);
+            if (devFields < 0 || devFields > MAX_DEV_FIELDS)
+                throw new IllegalArgumentException("devFields must be in [0, " + MAX_DEV_FIELDS + "]: " + devFields);
+        }
+
+        /** 1 Hz, one lap per km-ish at the generator pace, every RECORD with its distance. */
+        public static Spec of(int seconds) {
+            return new Spec(seconds, 1, Math.max(1, seconds / 333), 1, false, 0);
+        }
+
+        public Spec withDistanceEvery(int n) { return new Spec(seconds, sampleEvery, laps, n, hrv, devFields); }
+    }
+
+    static final long START = 1_000_000_000L;    // FIT timestamp of the first record
+    static final float SPEED = 3.0f;             // m/s
+    static final int MAX_DEV_FIELDS = 255;       // one developer data index, field numbers 0..254
+    private static final int HRV_PER_MESG = 5;   // HRV time array size
+
+    private FitGenerator() {}
+
+    /** Encodes one activity for {@code spec}. */
+    public static byte[] generate(Spec spec) {
+        var enc = new BufferEncoder(Fit.ProtocolVersion.V2_0);
+
+        var fileId = new FileIdMesg();
+        fileId.setType(com.garmin.fit.File.ACTIVITY);
+        fileId.setManufacturer(Manufacturer.GARMIN);
+        fileId.setProduct(1);
+        fileId.setSerialNumber(123L);
+        fileId.setTimeCreated(new DateTime(START));
+        enc.onMesg(fileId);
+
+        var start = new EventMesg();
+        start.setTimestamp(new DateTime(START));
+        start.setEvent(Event.TIMER);
+        start.setEventType(EventType.START);
+        enc.onMesg(start);
+
+        DeveloperField[] devFields = writeDeveloperFields(enc, spec.devFields());
+
+        int samples = (spec.seconds() + spec.sampleEvery() - 1) / spec.sampleEvery();
+        int perLap = (samples + spec.laps() - 1) / spec.laps();
+        long lapStart = START;
+        float lapStartDist = 0f;
+        int lapIndex = 0;
+        long t = START;
+        float dist = 0f;
+        for (int i = 0; i < samples; i++) {
+            t = START + (long) i * spec.sampleEvery();
+            dist = (t - START) * SPEED;
+
+            var r = new RecordMesg();
+            r.setTimestamp(new DateTime(t));
+            if (spec.distanceEvery() > 0 && i % spec.distanceEvery() == 0) r.setDistance(dist);
+            r.setHeartRate((short) (120 + i % 30));
+            r.setCadence((short) 85);
+            r.setSpeed(SPEED);
+            r.setEnhancedSpeed(SPEED);
+            for (int d = 0; d < devFields.length; d++) {
+                var f = new DeveloperField(devFields[d]);
+                f.setValue((i + d) % 1000);
+                r.addDeveloperField(f);
+            }
+            enc.onMesg(r);
+            if (spec.hrv()) writeHrv(enc, 120 + i % 30, spec.sampleEvery());
+
+            if ((i + 1) % perLap == 0 || i == samples - 1) {
+                var lap = new LapMesg();
+                lap.setTimestamp(new DateTime(t));
+                lap.setStartTime(new DateTime(lapStart));
+                lap.setTotalElapsedTime((float) (t - lapStart));
+                lap.setTotalDistance(dist - lapStartDist);
+                lap.setMessageIndex(lapIndex++);
+                lap.setSport(Sport.RUNNING);
+                lap.setAvgSpeed(SPEED);
+                lap.setMaxSpeed(SPEED);
+                enc.onMesg(lap);
+                lapStart = t;
+                lapStartDist = dist;
+            }
+        }
+
+        var session = new SessionMesg();
+        session.setTimestamp(new DateTime(t));
+        session.setStartTime(new DateTime(START));
+        session.setTotalElapsedTime((float) (t - START));
+        session.setTotalDistance(dist);
+        session.setSport(Sport.RUNNING);
+        session.setSubSport(SubSport.TREADMILL);
+        session.setAvgSpeed(SPEED);
+        session.setNumLaps(lapIndex);
+        enc.onMesg(session);
+
+        var activity = new ActivityMesg();
+        activity.setTimestamp(new DateTime(t));
+        activity.setNumSessions(1);
+        enc.onMesg(activity);
+
+        return enc.close();
+    }
+
+    // DEVELOPER_DATA_ID plus one FIELD_DESCRIPTION per field; returns templates for the RECORD values
+    private static DeveloperField[] writeDeveloperFields(MesgListener enc, int count) {
+        if (count == 0) return new DeveloperField[0];
+        var devId = new DeveloperDataIdMesg();
+        devId.setDeveloperDataIndex((short) 0);
+        for (int i = 0; i < 16; i++) devId.setApplicationId(i, (byte) i);
+        devId.setApplicationVersion(1L);
+        enc.onMesg(devId);
+
+        var fields = new DeveloperField[count];
+        for (int d = 0; d < count; d++) {
+            var desc = new FieldDescriptionMesg();
+            desc.setDeveloperDataIndex((short) 0);
+            desc.setFieldDefinitionNumber((short) d);
+            desc.setFitBaseTypeId(FitBaseType.UINT16);
+            desc.setFieldName(0, "synthetic_" + d);
+            desc.setUnits(0, "units");
+            desc.setNativeMesgNum(MesgNum.RECORD);
+            enc.onMesg(desc);
+            fields[d] = new DeveloperField(desc, devId);
+        }
+        return fields;
+    }
+
+    // The beat-to-beat intervals of one sampling window at a steady heart rate, up to five per message
+    private static void writeHrv(MesgListener enc, int bpm, int windowSeconds) {
+        float rr = 60f / bpm;
+        int beats = Math.max(1, Math.round(windowSeconds / rr));
+        for (int b = 0; b < beats; b += HRV_PER_MESG) {
+            var hrv = new HrvMesg();
+            for (int k = 0; k < HRV_PER_MESG && b + k < beats; k++) {
+                hrv.setTime(k, rr + ((b + k) % 7 - 3) * 0.004f); // a few ms of beat-to-beat jitter
+            }
+            enc.onMesg(hrv);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java -cp fit-injector.jar:fit.jar com.yourco.FitGenerator out.fit [options]");
+            System.err.println("\nOptions:");
+            System.err.println("  --seconds <n>         : Activity duration (default: 3600)");
+            System.err.println("  --rate <n>            : Seconds between records (default: 1)");
+            System.err.println("  --laps <n>            : Number of laps (default: one per ~1 km)");
+            System.err.println("  --distance-every <n>  : Distance on every n-th record, 0 = none (default: 1)");
+            System.err.println("  --hrv                 : Write HRV beat intervals");
+            System.err.println("  --dev-fields <n>      : Developer fields per record (default: 0)");
+            System.exit(1);
+        }
+        int seconds = 3600, rate = 1, laps = -1, distanceEvery = 1, devFields = 0;
+        boolean hrv = false;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--seconds"        -> seconds = Integer.parseInt(args[++i]);
+                    case "--rate"           -> rate = Integer.parseInt(args[++i]);
+                    case "--laps"           -> laps = Integer.parseInt(args[++i]);
+                    case "--distance-every" -> distanceEvery = Integer.parseInt(args[++i]);
+                    case "--hrv"            -> hrv = true;
+                    case "--dev-fields"     -> devFields = Integer.parseInt(args[++i]);
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (laps < 0) laps = Math.max(1, seconds / 333);
+            var spec = new Spec(seconds, rate, laps, distanceEvery, hrv, devFields);
+            byte[] fit = generate(spec);
+            Files.write(Path.of(args[0]), fit);
+            System.out.println("Wrote " + args[0] + " (" + fit.length + " bytes): " + spec);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) { // also covers NumberFormatException
+            System.err.println("Error: " + (e instanceof ArrayIndexOutOfBoundsException ? "missing option value" : e.getMessage()));
+            System.exit(1);
+        }
+    }
+}
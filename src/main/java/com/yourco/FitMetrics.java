@@ -0,0 +1,117 @@
+package com.yourco;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-phase timings and sizes for inject/analyse, recorded on Micrometer's global registry.
+ *
+ * The core is static and also runs from the CLI, so it cannot take a registry bean; Spring
+ * Boot adds its registries (Prometheus included) to the global one. The CLI may run with
+ * only fit.jar on the class path, so Micrometer is touched only when it is present. Meters are
+ * registered on first use and looked up by op and phase after that, without a builder per call.
+ *
+ *  • {@code fit.phase}     timer, tags {@code op} (inject/analyse/preview), {@code phase}
+ *                          (upload: request arrival to handler entry; scan, decode, interpolate, transform, size, encode, report, profile), {@code outcome}
+ *  • {@code fit.input}     bytes decoded per run
+ *  • {@code fit.output}    bytes encoded per run
+ *  • {@code fit.records}   RECORD messages per run
+ *  • {@code fit.messages}  messages in the file per run
+ */
+final class FitMetrics {
+
+    static final String INJECT = "inject", ANALYSE = "analyse", PREVIEW = "preview";
+
+    // Only for fit.cpu.wait: batch entries and jobs record their phases under inject
+    static final String BATCH = "batch", JOB = "job";
+
+    private static final boolean ENABLED = isPresent("io.micrometer.core.instrument.Metrics");
+
+    private FitMetrics() {}
+
+    @FunctionalInterface
+    interface Phase<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /** Runs {@code body} as one phase of {@code op}, tagging the sample with its outcome. */
+    static <T, E extends Exception> T time(String op, String phase, Phase<T, E> body) throws E {
+        if (!ENABLED) return body.run();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = body.run();
+            success = true;
+            return result;
+        } finally {
+            Micrometer.timer(op, phase, success).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /** Records a phase that started at {@code startNanos} and just ended (no-op without a start). */
+    static void since(String op, String phase, Long startNanos) {
+        if (ENABLED && startNanos != null) {
+            Micrometer.timer(op, phase, true).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    static void inputBytes(String op, long bytes)  { summary("fit.input", op, "bytes", bytes); }
+    static void outputBytes(String op, long bytes) { summary("fit.output", op, "bytes", bytes); }
+    static void records(String op, long count)     { summary("fit.records", op, "records", count); }
+    static void messages(String op, long count)    { summary("fit.messages", op, "messages", count); }
+
+    private static void summary(String name, String op, String unit, long amount) {
+        if (ENABLED) Micrometer.summary(name, op, unit).record(amount);
+    }
+
+    private static boolean isPresent(String className) {
+        try {
+            Class.forName(className, false, FitMetrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    // Only loaded once ENABLED is known to be true
+    private static final class Micrometer {
+        // op -> phase -> timer, per outcome; op -> meter name -> summary
+        static final Map<String, Map<String, Timer>> SUCCESS = new ConcurrentHashMap<>(), ERROR = new ConcurrentHashMap<>();
+        static final Map<String, Map<String, DistributionSummary>> SUMMARIES = new ConcurrentHashMap<>();
+
+        static Timer timer(String op, String phase, boolean success) {
+            Timer t = byOp(success ? SUCCESS : ERROR, op).get(phase);
+            if (t != null) return t;
+            String outcome = success ? "success" : "error";
+            return byOp(success ? SUCCESS : ERROR, op).computeIfAbsent(phase, p -> register(op, p, outcome));
+        }
+
+        static DistributionSummary summary(String name, String op, String unit) {
+            DistributionSummary s = byOp(SUMMARIES, op).get(name);
+            if (s != null) return s;
+            return byOp(SUMMARIES, op).computeIfAbsent(name, n -> DistributionSummary.builder(n)
+                    .baseUnit(unit)
+                    .tag("op", op)
+                    .register(Metrics.globalRegistry));
+        }
+
+        // Plain lookups once the meter exists; the capturing lambdas only run on a miss
+        private static <M> Map<String, M> byOp(Map<String, Map<String, M>> meters, String op) {
+            Map<String, M> m = meters.get(op);
+            return m != null ? m : meters.computeIfAbsent(op, k -> new ConcurrentHashMap<>());
+        }
+
+        private static Timer register(String op, String phase, String outcome) {
+            return Timer.builder("fit.phase")
+                        .description("Time spent in one phase of a FIT inject/analyse")
+                        .tags("op", op, "phase", phase, "outcome", outcome)
+                        .publishPercentileHistogram()
+                        .register(Metrics.globalRegistry);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.yourco;
+
+import com.garmin.fit.Factory;
+import com.garmin.fit.FitRuntimeException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Definition-level census of a FIT file, read straight off the byte stream.
+ *
+ * Only the file header, record headers and definition messages are parsed; data messages
+ * are skipped by the size their definition gives, so no {@code Mesg} or {@code Field} is ever
+ * built. That is enough for message counts, which fields each message type defines (and in
+ * how many messages) and the developer fields in use, and it checks the structure and CRC on
+ * the way, at close to I/O speed.
+ *
+ * A field counts as present when its message's definition includes it; unlike the full
+ * analyse, a defined field holding the invalid value still counts.
+ */
+final class FitScan {
+
+    /** Not a well-formed FIT: bad header, truncated, undefined local message type or CRC mismatch. */
+    static final class InvalidFitException extends FitRuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        InvalidFitException(String message) { super(message); }
+    }
+
+    /**
+     * @param bytes            bytes read, over all chained FIT files
+     * @param files            FIT files in the stream (usually 1)
+     * @param messageCounts    data messages by global message number
+     * @param fieldCounts      global message number → field number → data messages defining it
+     * @param developerFields  (developer data index, field number) → data messages carrying it
+     */
+    record Census(long bytes, int files, long messages, long definitions,
+                  SortedMap<Integer, Long> messageCounts,
+                  SortedMap<Integer, SortedMap<Integer, Long>> fieldCounts,
+                  Map<FitAnalysis.DevFieldKey, Long> developerFields) {
+
+        long count(int mesgNum) { return messageCounts.getOrDefault(mesgNum, 0L); }
+    }
+
+    private static final int HEADER_MIN = 12;
+
+    // One local message type's layout while its definition is in force
+    private static final class Definition {
+        final int global, dataSize;
+        final int[] fields;
+        final FitAnalysis.DevFieldKey[] devFields;
+        long uses;
+
+        Definition(int global, int dataSize, int[] fields, FitAnalysis.DevFieldKey[] devFields) {
+            this.global = global; this.dataSize = dataSize; this.fields = fields; this.devFields = devFields;
+        }
+    }
+
+    private FitScan() {}
+
+    static Census scan(byte[] fit) {
+        try {
+            return scan(new ByteArrayInputStream(fit));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not thrown by a byte array
+        }
+    }
+
+    static Census scan(InputStream in) throws IOException {
+        var r = new Reader(in);
+        var messageCounts = new TreeMap<Integer, Long>();
+        var fieldCounts = new TreeMap<Integer, SortedMap<Integer, Long>>();
+        var developerFields = new HashMap<FitAnalysis.DevFieldKey, Long>();
+        long messages = 0, definitions = 0;
+        int files = 0;
+
+        do {
+            files++;
+            r.crc = 0;
+            long dataEnd = readHeader(r);
+            var local = new Definition[16];
+            while (r.offset < dataEnd) {
+                int header = r.u8();
+                if ((header & 0x80) != 0 || (header & 0x40) == 0) {            // data (compressed timestamp or normal)
+                    int type = (header & 0x80) != 0 ? (header >> 5) & 0x03 : header & 0x0F;
+                    Definition d = local[type];
+                    if (d == null) throw invalid(r, "data message for undefined local type " + type);
+                    d.uses++;
+                    messages++;
+                    r.skip(d.dataSize);
+                } else {                                                       // definition
+                    int type = header & 0x0F;
+                    flush(local[type], messageCounts, fieldCounts, developerFields);
+                    local[type] = readDefinition(r, (header & 0x20) != 0);
+                    definitions++;
+                }
+            }
+            if (r.offset != dataEnd) throw invalid(r, "record overruns the data size in the header");
+            int expected = r.crc;
+            int stored = r.u8() | r.u8() << 8;
+            if (stored != expected) throw invalid(r, String.format("file CRC 0x%04X, expected 0x%04X", stored, expected));
+            for (Definition d : local) flush(d, messageCounts, fieldCounts, developerFields);
+        } while (!r.atEnd());
+
+        return new Census(r.offset, files, messages, definitions, messageCounts, fieldCounts, developerFields);
+    }
+
+    // Validates the file header; returns the stream offset where its data records end
+    private static long readHeader(Reader r) throws IOException {
+        long start = r.offset;
+        int size = r.u8();
+        if (size < HEADER_MIN) throw invalid(r, "header size " + size);
+        r.u8();                                           // protocol version
+        r.u8(); r.u8();                                   // profile version
+        long dataSize = r.u8() | r.u8() << 8 | r.u8() << 16 | (long) r.u8() << 24;
+        if (r.u8() != '.' || r.u8() != 'F' || r.u8() != 'I' || r.u8() != 'T') throw invalid(r, "missing .FIT signature");
+        r.skip(size - HEADER_MIN);                        // header CRC and any future header bytes
+        return start + size + dataSize;
+    }
+
+    private static Definition readDefinition(Reader r, boolean hasDevFields) throws IOException {
+        r.u8();                                           // reserved
+        boolean bigEndian = r.u8() == 1;
+        int b0 = r.u8(), b1 = r.u8();
+        int global = bigEndian ? b0 << 8 | b1 : b1 << 8 | b0;
+        int[] fields = new int[r.u8()];
+        int dataSize = 0;
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = r.u8();
+            dataSize += r.u8();
+            r.u8();                                       // base type
+        }
+        var devFields = new FitAnalysis.DevFieldKey[hasDevFields ? r.u8() : 0];
+        for (int i = 0; i < devFields.length; i++) {
+            int num = r.u8();
+            dataSize += r.u8();
+            devFields[i] = new FitAnalysis.DevFieldKey((short) r.u8(), num);
+        }
+        return new Definition(global, dataSize, fields, devFields);
+    }
+
+    // Adds a retiring definition's message count to every field it defines
+    private static void flush(Definition d, Map<Integer, Long> messageCounts,
+                              Map<Integer, SortedMap<Integer, Long>> fieldCounts,
+                              Map<FitAnalysis.DevFieldKey, Long> developerFields) {
+        if (d == null || d.uses == 0) return;
+        messageCounts.merge(d.global, d.uses, Long::sum);
+        var perField = fieldCounts.computeIfAbsent(d.global, g -> new TreeMap<>());
+        for (int f : d.fields) perField.merge(f, d.uses, Long::sum);
+        for (var k : d.devFields) developerFields.merge(k, d.uses, Long::sum);
+        d.uses = 0;
+    }
+
+    private static InvalidFitException invalid(Reader r, String why) {
+        return new InvalidFitException("FIT scan error at byte " + r.offset + ": " + why);
+    }
+
+    /** Message name for a global number, as the decoder would report it. */
+    static String messageName(int mesgNum) {
+        String name = Factory.createMesg(mesgNum).getName();
+        return name != null ? name : "unknown";
+    }
+
+    /** Field name for a message's field number, or {@code field_<n>} when the profile has none. */
+    static String fieldName(int mesgNum, int fieldNum) {
+        var f = Factory.createField(mesgNum, fieldNum);
+        return f != null && f.getName() != null && !"unknown".equals(f.getName()) ? f.getName() : "field_" + fieldNum;
+    }
+
+    // Buffered byte source that keeps the running CRC and absolute offset
+    private static final class Reader {
+        private final InputStream in;
+        private final byte[] buf = new byte[64 * 1024];
+        private int pos, lim;
+        long offset;
+        int crc;
+
+        Reader(InputStream in) { this.in = in; }
+
+        int u8() throws IOException {
+            if (pos == lim && !fill()) throw invalid(this, "unexpected end of file");
+            int b = buf[pos++] & 0xFF;
+            crc = FitCrc.update(crc, b);
+            offset++;
+            return b;
+        }
+
+        void skip(long n) throws IOException {
+            while (n > 0) {
+                if (pos == lim && !fill()) throw invalid(this, "unexpected end of file");
+                int k = (int) Math.min(n, lim - pos);
+                crc = FitCrc.update(crc, buf, pos, k);
+                pos += k; offset += k; n -= k;
+            }
+        }
+
+        boolean atEnd() throws IOException {
+            return pos == lim && !fill();
+        }
+
+        private boolean fill() throws IOException {
+            int n = in.read(buf, 0, buf.length);
+            if (n <= 0) return false;
+            pos = 0; lim = n;
+            return true;
+        }
+    }
+}
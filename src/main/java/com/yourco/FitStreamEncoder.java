@@ -0,0 +1,314 @@
+package com.yourco;
+
+import com.garmin.fit.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * FIT encoder that writes straight to an {@link OutputStream} through a small buffer, instead
+ * of building the whole file in memory like {@link BufferEncoder}.
+ *
+ * The file header carries the size of the records that follow, so the messages go through a
+ * {@link #sizer} first. That pass only builds message definitions and adds up their field
+ * sizes, without encoding any values. The CRC is kept as the bytes go out and written last.
+ * The size is known before the first byte, so the caller can also send it as Content-Length.
+ *
+ * RECORDs, nearly all of a file, skip the SDK's per-message writer when a {@link RecordLayout}
+ * fits them: one definition covering every field any RECORD carries, written once, with each
+ * record's values copied straight into the output buffer (invalid where a record lacks a field).
+ * Layout changes between records then cost no definition messages, and encoding a record
+ * allocates nothing. Other messages are written as {@link BufferEncoder} writes them.
+ *
+ * The RECORDs' position and enhanced altitude come from {@link RecordValues}, row by row in
+ * encode order, instead of from the messages. One set of decoded RECORDs can so be encoded
+ * for several injects at once without any of them writing into the shared messages.
+ *
+ * Always protocol 2.0, whose validator accepts every message. A failed write to the stream
+ * surfaces as {@link UncheckedIOException}, which the SDK's message writers pass through
+ * unwrapped, so it cannot be mistaken for one bad message.
+ */
+final class FitStreamEncoder implements MesgListener {
+
+    static final int HEADER_SIZE = 14, CRC_SIZE = 2;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // Local message type of the fixed RECORD layout
+    private static final int RECORD_LOCAL = 0;
+
+    private final MesgDefinition[] definitions = new MesgDefinition[Fit.MAX_LOCAL_MESGS];
+    private final Sink sink;               // null while sizing
+    private final long declared;           // record bytes promised in the header
+    private final RecordLayout records;    // null: RECORDs go through the SDK writer too
+    private final RecordValues values;     // null while sizing
+    private boolean recordDefined;         // whether RECORD_LOCAL currently holds the RECORD layout
+    private int row;                       // RECORDs written so far
+    private long dataSize;
+
+    private FitStreamEncoder(Sink sink, long declared, RecordLayout records, RecordValues values) {
+        this.sink = sink;
+        this.declared = declared;
+        this.records = records;
+        this.values = values;
+    }
+
+    /**
+     * Position (semicircles) and enhanced altitude (m) of each RECORD, in encode order. They
+     * replace the RECORDs' own values, which must already carry these fields.
+     */
+    record RecordValues(int[] lat, int[] lon, float[] altitude) {}
+
+    /** Sizing pass: counts the record bytes the same messages encode to, writing nothing. */
+    static FitStreamEncoder sizer(RecordLayout records) {
+        return new FitStreamEncoder(null, -1, records, null);
+    }
+
+    /**
+     * Starts a file on {@code out} whose records add up to {@code dataSize} bytes, from a
+     * {@link #sizer} pass over the same messages with the same layout.
+     */
+    static FitStreamEncoder open(OutputStream out, RecordLayout records, RecordValues values, long dataSize) {
+        var enc = new FitStreamEncoder(new Sink(out), dataSize, records, values);
+        enc.writeHeader();
+        return enc;
+    }
+
+    /** Record bytes so far: definition and data messages, without header or CRC. */
+    long dataSize() { return dataSize; }
+
+    /** Whole file size for a given record size. */
+    static long fileSize(long dataSize) { return HEADER_SIZE + dataSize + CRC_SIZE; }
+
+    @Override
+    public void onMesg(Mesg m) {
+        if (records != null && m.getNum() == MesgNum.RECORD) {
+            if (!recordDefined) {
+                definitions[RECORD_LOCAL] = null;
+                recordDefined = true;
+                dataSize += records.definitionSize();
+                if (sink != null) records.writeDefinition(sink);
+            }
+            dataSize += 1 + records.size;
+            if (sink != null) records.write(m, sink, values, row++);
+            return;
+        }
+        if (sink != null && m.getNum() == MesgNum.RECORD) m = withValues(m, row++);
+        int local = m.getLocalNum();
+        MesgDefinition d = definitions[local];
+        if (d == null || !d.supports(m)) {
+            d = new MesgDefinition(m);
+            definitions[local] = d;
+            if (local == RECORD_LOCAL) recordDefined = false;
+            dataSize += definitionSize(d);
+            if (sink != null) d.write(sink);
+        }
+        dataSize += 1 + d.getDeveloperFieldTotalSize();
+        for (FieldDefinition f : d.getFields()) dataSize += f.getSize();
+        if (sink != null) m.write(sink, d);
+    }
+
+    // Without the fixed layout the SDK writes the message itself, so it gets a copy with this row's values
+    private Mesg withValues(Mesg m, int row) {
+        var copy = new Mesg(m);
+        copy.setFieldValue(RecordMesg.PositionLatFieldNum, 0, values.lat()[row], Fit.SUBFIELD_INDEX_MAIN_FIELD);
+        copy.setFieldValue(RecordMesg.PositionLongFieldNum, 0, values.lon()[row], Fit.SUBFIELD_INDEX_MAIN_FIELD);
+        copy.setFieldValue(RecordMesg.EnhancedAltitudeFieldNum, 0, values.altitude()[row], Fit.SUBFIELD_INDEX_MAIN_FIELD);
+        return copy;
+    }
+
+    /** Writes the file CRC and flushes. Fails if the records did not add up to the size in the header. */
+    void close() {
+        if (sink == null) return;
+        if (dataSize != declared) {
+            throw new IllegalStateException("Encoded " + dataSize + " record bytes, header declared " + declared);
+        }
+        int crc = sink.crc();
+        sink.write(crc & 0xFF);
+        sink.write(crc >>> 8 & 0xFF);
+        sink.flush();
+    }
+
+    // Same header as BufferEncoder: size, protocol and profile version, data size, ".FIT", header CRC
+    private void writeHeader() {
+        byte[] h = {
+            HEADER_SIZE, (byte) Fit.ProtocolVersion.V2_0.getVersion(),
+            (byte) Fit.PROFILE_VERSION, (byte) (Fit.PROFILE_VERSION >>> 8),
+            (byte) declared, (byte) (declared >>> 8), (byte) (declared >>> 16), (byte) (declared >>> 24),
+            '.', 'F', 'I', 'T', 0, 0
+        };
+        int crc = FitCrc.update(0, h, 0, 12);
+        h[12] = (byte) crc;
+        h[13] = (byte) (crc >>> 8);
+        sink.write(h, 0, h.length);
+    }
+
+    // Record header, reserved, architecture, global number, field count and 3 bytes per field
+    private static int definitionSize(MesgDefinition d) {
+        int size = 6 + 3 * d.getFields().size();
+        int dev = 0;
+        for (DeveloperFieldDefinition ignored : d.getDeveloperFields()) dev++;
+        return dev > 0 ? size + 1 + 3 * dev : size;
+    }
+
+    /**
+     * One RECORD definition for a whole file: every field any RECORD carries, each at the one
+     * size and base type all RECORDs agree on, little-endian.
+     */
+    static final class RecordLayout {
+
+        // Invalid value per base type number, written where a record lacks a field
+        private static final long[] INVALID = {
+            0xFFL, 0x7FL, 0xFFL, 0x7FFFL, 0xFFFFL, 0x7FFFFFFFL, 0xFFFFFFFFL, 0L,
+            0xFFFFFFFFL, -1L, 0L, 0L, 0L, 0xFFL, Long.MAX_VALUE, -1L, 0L
+        };
+
+        private final int[] nums, types, counts, widths;
+        final int size;
+
+        private RecordLayout(int[] nums, int[] types, int[] counts) {
+            this.nums = nums; this.types = types; this.counts = counts;
+            this.widths = new int[nums.length];
+            int size = 0;
+            for (int i = 0; i < nums.length; i++) {
+                widths[i] = Fit.baseTypeSizes[types[i] & Fit.BASE_TYPE_NUM_MASK];
+                size += counts[i] * widths[i];
+            }
+            this.size = size;
+        }
+
+        /**
+         * The layout for the RECORDs among {@code mesgs}, or null when one layout cannot hold
+         * them: no RECORDs, developer fields, strings, or a field whose type or value count
+         * differs between records.
+         */
+        static RecordLayout of(List<Mesg> mesgs) {
+            var fields = new LinkedHashMap<Integer, int[]>(); // num -> {type, count}
+            for (Mesg m : mesgs) {
+                if (m.getNum() != MesgNum.RECORD) continue;
+                if (m.getDeveloperFields().iterator().hasNext()) return null;
+                for (Field f : m.getFields()) {
+                    int n = f.getNumValues();
+                    if (n == 0) continue;
+                    int type = f.getType();
+                    if ((type & Fit.BASE_TYPE_NUM_MASK) >= INVALID.length || type == Fit.BASE_TYPE_STRING) return null;
+                    int[] seen = fields.putIfAbsent(f.getNum(), new int[] { type, n });
+                    if (seen != null && (seen[0] != type || seen[1] != n)) return null;
+                }
+            }
+            if (fields.isEmpty() || fields.size() > 255) return null;
+            int[] nums = new int[fields.size()], types = new int[nums.length], counts = new int[nums.length];
+            int i = 0;
+            for (var e : fields.entrySet()) {
+                nums[i] = e.getKey(); types[i] = e.getValue()[0]; counts[i] = e.getValue()[1];
+                i++;
+            }
+            return new RecordLayout(nums, types, counts);
+        }
+
+        int definitionSize() { return 6 + 3 * nums.length; }
+
+        void writeDefinition(Sink s) {
+            s.write(0x40 | RECORD_LOCAL);
+            s.write(0);                                   // reserved
+            s.write(0);                                   // little-endian
+            s.putLE(MesgNum.RECORD, 2);
+            s.write(nums.length);
+            for (int i = 0; i < nums.length; i++) {
+                s.write(nums[i]);
+                s.write(counts[i] * widths[i]);
+                s.write(types[i]);
+            }
+        }
+
+        // Raw values go straight from the message's fields (or the row's values) into the buffer,
+        // nothing is boxed or copied
+        void write(Mesg m, Sink s, RecordValues rv, int row) {
+            s.write(RECORD_LOCAL);
+            for (int i = 0; i < nums.length; i++) {
+                switch (nums[i]) {
+                    case RecordMesg.PositionLatFieldNum -> { s.putLE(rv.lat()[row], widths[i]); continue; }
+                    case RecordMesg.PositionLongFieldNum -> { s.putLE(rv.lon()[row], widths[i]); continue; }
+                    case RecordMesg.EnhancedAltitudeFieldNum -> { s.putLE(altitudeRaw(rv.altitude()[row]), widths[i]); continue; }
+                    default -> { }
+                }
+                Field f = m.getField(nums[i]);
+                int n = f != null ? f.getNumValues() : 0;
+                for (int j = 0; j < counts[i]; j++) {
+                    Object raw = j < n ? f.getRawValue(j) : null;
+                    s.putLE(raw instanceof Number v ? bits(v, types[i]) : INVALID[types[i] & Fit.BASE_TYPE_NUM_MASK], widths[i]);
+                }
+            }
+        }
+
+        // enhanced_altitude is uint32 with scale 5 and offset 500, rounded as the SDK rounds it
+        private static long altitudeRaw(float altitude) {
+            return Math.round(((double) altitude + 500) * 5);
+        }
+
+        private static long bits(Number v, int type) {
+            return switch (type) {
+                case Fit.BASE_TYPE_FLOAT32 -> Float.floatToRawIntBits(v.floatValue());
+                case Fit.BASE_TYPE_FLOAT64 -> Double.doubleToRawLongBits(v.doubleValue());
+                default -> v.longValue();
+            };
+        }
+    }
+
+    // Buffers the SDK's byte-at-a-time writes and runs the CRC over each buffer as it goes out
+    private static final class Sink extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private int pos;
+        private int crc;
+
+        Sink(OutputStream out) { this.out = out; }
+
+        int crc() { return FitCrc.update(crc, buf, 0, pos); }
+
+        @Override
+        public void write(int b) {
+            if (pos == buf.length) drain();
+            buf[pos++] = (byte) b;
+        }
+
+        // The low n bytes of v, little-endian
+        void putLE(long v, int n) {
+            if (buf.length - pos < n) drain();
+            for (int k = 0; k < n; k++, v >>>= 8) buf[pos++] = (byte) v;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                if (pos == buf.length) drain();
+                int n = Math.min(len, buf.length - pos);
+                System.arraycopy(b, off, buf, pos, n);
+                pos += n; off += n; len -= n;
+            }
+        }
+
+        @Override
+        public void flush() {
+            drain();
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void drain() {
+            crc = FitCrc.update(crc, buf, 0, pos);
+            try {
+                out.write(buf, 0, pos);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            pos = 0;
+        }
+    }
+}
@@ -1,75 +1,447 @@
 package com.yourco;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.garmin.fit.FitRuntimeException;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.io.File;
-import java.nio.file.Files;
-import java.util.UUID;
-import java.util.ArrayList;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
 
 @RestController
 public class InjectController {
 
+    private final InjectionEngine engine;
+    private final BatchInjector batch;
+    private final ObjectMapper json;
+    private final ResultCache cache;
+    private final ActivityCache activities;
+    private final CpuBulkhead cpu;
+    private final MemoryBudget memory;
+    private final RouteRegistry routes;
+    private final long maxUpload, maxBatch;
+
+    // Response header carrying the token for re-injecting the same upload
+    static final String UPLOAD_TOKEN = "X-Upload-Token";
+
+    public InjectController(InjectionEngine engine, BatchInjector batch, ObjectMapper json,
+                            ResultCache cache, ActivityCache activities, CpuBulkhead cpu,
+                            MemoryBudget memory, RouteRegistry routes,
+                            @Value("${inject.upload.max-size:100MB}") DataSize maxUpload,
+                            @Value("${inject.batch.max-expanded-size:1GB}") DataSize maxBatch) {
+        this.engine = engine;
+        this.batch = batch;
+        this.json = json;
+        this.cache = cache;
+        this.activities = activities;
+        this.cpu = cpu;
+        this.memory = memory;
+        this.routes = routes;
+        this.maxUpload = maxUpload.toBytes();
+        this.maxBatch = maxBatch.toBytes();
+    }
+
+    /**
+     * Injects one upload. Send either {@code file}, or the {@code token} from the
+     * {@code X-Upload-Token} header of an earlier response to re-inject that upload with
+     * new parameters without sending or decoding it again.
+     */
     @PostMapping(path = "/inject", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-    public ResponseEntity<byte[]> inject(
-            @RequestParam(name="file") MultipartFile file,
+    public ResponseEntity<StreamingResponseBody> inject(
+            @RequestParam(name="file",    required=false)         MultipartFile file,
+            @RequestParam(name="token",   required=false)         String token,
             @RequestParam(name="lat",     defaultValue="42.036369") double lat,
             @RequestParam(name="lon",     defaultValue="-91.638498") double lon,
             @RequestParam(name="alt",     defaultValue="0")      float alt,
             @RequestParam(name="bearing", defaultValue="0")      double bearing,
             @RequestParam(name="virtual", defaultValue="false")   boolean virtual,
             @RequestParam(name="grade",   defaultValue="0.10")    double grade,
-            @RequestParam(name="name",    required=false)         String outputName
+            @RequestParam(name="name",    required=false)         String outputName,
+            @RequestParam(name="course",  required=false)         MultipartFile course,
+            @RequestParam(name="route",   required=false)         String route,
+            @RequestHeader(name=HttpHeaders.IF_NONE_MATCH, required=false) String ifNoneMatch,
+            @RequestAttribute(name=RequestStartFilter.START, required=false) Long started,
+            HttpServletRequest request
             ) throws Exception {
 
-                // 1. Save the uploaded FIT to a temp file
-                File in  = File.createTempFile("in-",  ".fit");
-                file.transferTo(in);
-
-                // 2. Prepare an output temp file
-                File out = File.createTempFile("out-", ".fit");
-
-                // 3. Build the args array for in-process injection
-                String[] injectorArgs = new String[] {
-                    in.getAbsolutePath(),
-                    out.getAbsolutePath(),
-                    String.valueOf(lat),
-                    String.valueOf(lon),
-                    String.valueOf(alt),
-                    String.valueOf(bearing),
-                    "--grade",
-                    String.valueOf(grade),
-                    virtual ? "--virtual" : ""
-                };
+                if (file != null) FitMetrics.since(FitMetrics.INJECT, "upload", started);
+                var opts = routes.routed(new InjectOptions(lat, lon, alt, bearing, grade, virtual), course, route);
+                if (file == null && (token == null || token.isBlank())) {
+                    throw new IllegalArgumentException("Either file or token is required");
+                }
+
+                // 1. The upload is identified by its content hash, which is also its token
+                byte[] upload = file != null ? file.getBytes() : null;
+                String uploadKey = upload != null ? ResultCache.hash(upload) : token;
+
+                return respond(request, uploadKey, opts, ifNoneMatch, file != null ? file.getOriginalFilename() : null,
+                               outputName, grade, reserve(uploadKey, upload), () -> activity(uploadKey, upload, file));
+            }
+
+    /**
+     * Injects a FIT sent as the raw request body ({@code application/octet-stream} or
+     * {@code application/vnd.ant.fit}), options as query parameters. The body is decoded as it
+     * arrives instead of being buffered first, and cut off with 413 once it passes
+     * {@code inject.upload.max-size}. The response, token and cache entries are the same as
+     * for the multipart upload; the ETag is only known once the whole body has been read, so
+     * a 304 here saves the download but not the upload. The body is the FIT itself, so a course
+     * can only be a saved one, by {@code route} name.
+     */
+    @PostMapping(path = "/inject", consumes = {MediaType.APPLICATION_OCTET_STREAM_VALUE, FIT_MEDIA_TYPE})
+    public ResponseEntity<StreamingResponseBody> injectStream(
+            InputStream body,
+            @RequestParam(name="lat",     defaultValue="42.036369") double lat,
+            @RequestParam(name="lon",     defaultValue="-91.638498") double lon,
+            @RequestParam(name="alt",     defaultValue="0")      float alt,
+            @RequestParam(name="bearing", defaultValue="0")      double bearing,
+            @RequestParam(name="virtual", defaultValue="false")   boolean virtual,
+            @RequestParam(name="grade",   defaultValue="0.10")    double grade,
+            @RequestParam(name="name",    required=false)         String outputName,
+            @RequestParam(name="route",   required=false)         String route,
+            @RequestHeader(name=HttpHeaders.CONTENT_LENGTH, required=false) Long contentLength,
+            @RequestHeader(name=HttpHeaders.IF_NONE_MATCH, required=false) String ifNoneMatch,
+            HttpServletRequest request
+            ) throws Exception {
+
+                var opts = routes.routed(new InjectOptions(lat, lon, alt, bearing, grade, virtual), null, route);
+                // A declared length over the limit is refused before reading anything
+                if (contentLength != null && contentLength > maxUpload) {
+                    throw new MaxUploadSizeExceededException(maxUpload);
+                }
 
-                // 4. Call your injector directly (no forked JVM)
-                AddInclineFitGem.main(injectorArgs);
+                // 1. Reserve heap for the decode from the header's data size and the body length,
+                //    then decode straight off the wire, in one of the bulkhead's inline slots; the
+                //    content hash (token) is taken on the way. A body of unknown length (chunked)
+                //    may hold a chained file past its header, so it reserves for the largest upload
+                //    and is cut off where that reservation ends
+                var upload = new UploadStream(body, maxUpload);
+                var held = memory.reserve(upload.peek(MemoryBudget.HEADER_PEEK), contentLength != null ? contentLength : maxUpload);
+                ActivityCache.Entry act;
+                String uploadKey;
+                try {
+                    if (contentLength == null) upload.limit(held.bytes());
+                    var prepared = cpu.callInline(FitMetrics.INJECT, () -> {
+                        var p = engine.prepare(upload);
+                        upload.drain();
+                        return p;
+                    });
+                    uploadKey = upload.hash();
+                    act = new ActivityCache.Entry(prepared, null, (int) upload.count());
+                } catch (Throwable e) {
+                    held.close();
+                    throw e;
+                }
+                activities.put(uploadKey, act);
+
+                return respond(request, uploadKey, opts, ifNoneMatch, null, outputName, grade, held, () -> act);
+            }
+
+    // Raw FIT upload media type accepted by the streaming /inject
+    static final String FIT_MEDIA_TYPE = "application/vnd.ant.fit";
+
+    // Cache lookup, inject on a miss and the attachment response, shared by both /inject forms.
+    // The memory reservation is given back once the response is written, or right away without one
+    private ResponseEntity<StreamingResponseBody> respond(HttpServletRequest request,
+                                                          String uploadKey, InjectOptions opts, String ifNoneMatch,
+                                                          String originalName, String outputName, double grade,
+                                                          MemoryBudget.Reservation held,
+                                                          Supplier<ActivityCache.Entry> activity) throws Exception {
 
-                // 5. Determine the download filename
-                String dlName;
-                if (outputName != null && !outputName.isBlank()) {
-                    dlName = outputName;
+                // 2. Content-addressed result: same upload + options -> same bytes, same strong ETag
+                String key = null, etag = null;
+                byte[] fit = null;
+                if (cache.enabled()) {
+                    key = ResultCache.key(uploadKey, opts);
+                    etag = "\"" + key + "\"";
+                    if (matches(ifNoneMatch, etag)) {
+                        held.close();
+                        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag)
+                                .header(UPLOAD_TOKEN, uploadKey).build();
+                    }
+                    fit = cache.get(key);
+                }
+
+                // 3. Otherwise inject, decoding only if this upload is not cached yet. The output
+                //    is sized first and encoded straight to the response as it is written
+                ActivityCache.Entry act = activities.get(uploadKey);
+                StreamingResponseBody body;
+                long size;
+                if (fit == null) {
+                    // Decode (unless cached), transform and size on the CPU pool; the encode
+                    // runs as the response is written, at the client's pace
+                    Prepared prepared;
+                    try {
+                        prepared = cpu.call(FitMetrics.INJECT, () -> {
+                            var a = activity.get();
+                            return new Prepared(a, engine.injection(a.activity(), opts));
+                        });
+                    } catch (Throwable e) {
+                        held.close();
+                        throw e;
+                    }
+                    act = prepared.act();
+                    var injection = prepared.injection();
+                    size = injection.size();
+                    String cacheKey = key;
+                    // Keep a copy only when the cache will hold on to it
+                    StreamingResponseBody write = cacheKey != null && cache.fits(size)
+                         ? out -> {
+                               var copy = new ByteArrayOutputStream((int) size);
+                               injection.writeTo(new TeeOutputStream(out, copy));
+                               cache.put(cacheKey, copy.toByteArray());
+                           }
+                         : injection::writeTo;
+                    // Written on an async thread: keep the request's diagnostics tag
+                    String tag = FitDiagnostics.tag();
+                    body = out -> {
+                        String previous = FitDiagnostics.tag(tag);
+                        try (held) {
+                            write.writeTo(out);
+                        } finally {
+                            FitDiagnostics.tag(previous);
+                        }
+                    };
+                    releaseOnCompletion(request, held);
                 } else {
-                    String orig = file.getOriginalFilename();
-                    String base = (orig != null)
-                                  ? orig.replaceFirst("\\.fit$", "")
-                                  : "output";
-                    dlName = base + "_injected_grade_" + (int)(grade * 100) + ".fit";
+                    held.close();
+                    byte[] cached = fit;
+                    size = cached.length;
+                    body = out -> out.write(cached);
                 }
 
-                // 6. Read the injected FIT bytes
-                byte[] body = Files.readAllBytes(out.toPath());
+                // 4. Determine the download filename
+                String orig = originalName != null ? originalName : act != null ? act.fileName() : null;
+                String dlName = (outputName != null && !outputName.isBlank())
+                              ? outputName
+                              : outputName(orig, grade);
 
-                // 7. Return as an attachment
+                // 5. Return as an attachment
                 return ResponseEntity.ok()
                         .header(HttpHeaders.CONTENT_DISPOSITION,
                                 "attachment; filename=\"" + dlName + "\"")
+                        .header(UPLOAD_TOKEN, uploadKey)
+                        .eTag(etag)
                         .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .contentLength(size)
+                        .body(body);
+            }
+
+    private record Prepared(ActivityCache.Entry act, AddInclineFitGem.Injection injection) {}
+
+    // The body gives the reservation back once it is written. If it never runs (the client left
+    // before the async dispatch, the async request timed out, the executor refused the task),
+    // the end of the async request does; closing twice does nothing
+    static void releaseOnCompletion(HttpServletRequest request, MemoryBudget.Reservation held) {
+        WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(held, new CallableProcessingInterceptor() {
+            @Override
+            public <T> void afterCompletion(NativeWebRequest webRequest, Callable<T> task) {
+                held.close();
+            }
+        });
+    }
+
+    // Copies everything written to the response into the cache copy as well
+    private static final class TeeOutputStream extends FilterOutputStream {
+        private final OutputStream copy;
+
+        TeeOutputStream(OutputStream out, OutputStream copy) {
+            super(out);
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            copy.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            copy.write(b, off, len);
+        }
+    }
+
+    /**
+     * What {@code /inject} would produce with these parameters, as JSON: ascent, altitude range,
+     * end position, bounding box and a distance/altitude profile of at most {@code points}
+     * samples. Runs only the distance/altitude math, so it is cheap enough for every slider move.
+     * Takes {@code file} or {@code token} like {@code /inject} and returns the token too.
+     */
+    @PostMapping(path = "/inject/preview", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<AddInclineFitGem.Preview> preview(
+            @RequestParam(name="file",    required=false)         MultipartFile file,
+            @RequestParam(name="token",   required=false)         String token,
+            @RequestParam(name="lat",     defaultValue="42.036369") double lat,
+            @RequestParam(name="lon",     defaultValue="-91.638498") double lon,
+            @RequestParam(name="alt",     defaultValue="0")      float alt,
+            @RequestParam(name="bearing", defaultValue="0")      double bearing,
+            @RequestParam(name="virtual", defaultValue="false")   boolean virtual,
+            @RequestParam(name="grade",   defaultValue="0.10")    double grade,
+            @RequestParam(name="points",  defaultValue="200")     int points,
+            @RequestParam(name="course",  required=false)         MultipartFile course,
+            @RequestParam(name="route",   required=false)         String route,
+            @RequestAttribute(name=RequestStartFilter.START, required=false) Long started
+            ) throws Exception {
+
+                if (file != null) FitMetrics.since(FitMetrics.PREVIEW, "upload", started);
+                var opts = routes.routed(new InjectOptions(lat, lon, alt, bearing, grade, virtual), course, route);
+                if (points < 2 || points > MAX_PREVIEW_POINTS) {
+                    throw new IllegalArgumentException("points must be within [2, " + MAX_PREVIEW_POINTS + "]: " + points);
+                }
+                if (file == null && (token == null || token.isBlank())) {
+                    throw new IllegalArgumentException("Either file or token is required");
+                }
+                byte[] upload = file != null ? file.getBytes() : null;
+                String uploadKey = upload != null ? ResultCache.hash(upload) : token;
+                AddInclineFitGem.Preview preview;
+                var held = reserve(uploadKey, upload);
+                try {
+                    preview = cpu.call(FitMetrics.PREVIEW,
+                            () -> engine.preview(activity(uploadKey, upload, file).activity(), opts, points));
+                } finally {
+                    held.close();
+                }
+                return ResponseEntity.ok()
+                        .header(UPLOAD_TOKEN, uploadKey)
+                        .body(preview);
+            }
+
+    private static final int MAX_PREVIEW_POINTS = 10_000;
+
+    // Prepared activity for an upload (decoded and cached on first use) or for a token
+    private ActivityCache.Entry activity(String uploadKey, byte[] upload, MultipartFile file) {
+        var act = activities.get(uploadKey);
+        if (act == null) {
+            if (upload == null) throw new ActivityCache.UnknownTokenException(uploadKey);
+            act = new ActivityCache.Entry(engine.prepare(upload), file.getOriginalFilename(), upload.length);
+            activities.put(uploadKey, act);
+        }
+        return act;
+    }
+
+    // Heap for decoding an upload, unless it is decoded already or there is only a token
+    private MemoryBudget.Reservation reserve(String uploadKey, byte[] upload) throws InterruptedException {
+        return upload != null && activities.get(uploadKey) == null
+             ? memory.reserve(upload, upload.length)
+             : MemoryBudget.Reservation.NONE;
+    }
+
+    // If-None-Match: "*" or a comma-separated list of (possibly weak) entity tags
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Injects several uploads in one request. {@code files} may be FIT files, ZIPs of FIT files
+     * or a mix; results are streamed back as a ZIP while the rest are still being processed.
+     * {@code overrides} is an optional JSON object from file name to option values, e.g.
+     * {@code {"tue.fit": {"grade": 0.05}}}, applied on top of the request-wide parameters.
+     */
+    @PostMapping(path = "/inject/batch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<StreamingResponseBody> injectBatch(
+            @RequestParam(name="files") List<MultipartFile> files,
+            @RequestParam(name="lat",     defaultValue="42.036369") double lat,
+            @RequestParam(name="lon",     defaultValue="-91.638498") double lon,
+            @RequestParam(name="alt",     defaultValue="0")      float alt,
+            @RequestParam(name="bearing", defaultValue="0")      double bearing,
+            @RequestParam(name="virtual", defaultValue="false")   boolean virtual,
+            @RequestParam(name="grade",   defaultValue="0.10")    double grade,
+            @RequestParam(name="overrides", required=false)       String overrides,
+            @RequestParam(name="course",  required=false)         MultipartFile course,
+            @RequestParam(name="route",   required=false)         String route
+            ) throws Exception {
+
+                // 1. Validate everything up front; once the ZIP starts streaming only per-file errors remain
+                var defaults = routes.routed(new InjectOptions(lat, lon, alt, bearing, grade, virtual), course, route);
+                Map<String, InjectOptions> perFile = new HashMap<>();
+                if (overrides != null && !overrides.isBlank()) {
+                    Map<String, Map<String, Object>> parsed;
+                    try {
+                        parsed = json.readValue(overrides, new TypeReference<>() {});
+                    } catch (JsonProcessingException e) {
+                        throw new IllegalArgumentException("overrides must be a JSON object of file name to options: " + e.getOriginalMessage());
+                    }
+                    parsed.forEach((name, o) -> perFile.put(name, defaults.with(o)));
+                }
+
+                // 2. Stream the results back as they complete
+                String tag = FitDiagnostics.tag();
+                StreamingResponseBody body = out -> {
+                    String previous = FitDiagnostics.tag(tag);
+                    try {
+                        batch.run(BatchUploads.entries(files, name -> perFile.getOrDefault(name, defaults), maxUpload, maxBatch), out);
+                    } finally {
+                        FitDiagnostics.tag(previous);
+                    }
+                };
+                return ResponseEntity.ok()
+                        .header(HttpHeaders.CONTENT_DISPOSITION,
+                                "attachment; filename=\"injected_grade_" + (int)(grade * 100) + ".zip\"")
+                        .contentType(MediaType.parseMediaType("application/zip"))
                         .body(body);
             }
-        }
\ No newline at end of file
+
+    // <original>_injected_grade_<grade>.fit
+    static String outputName(String originalName, double grade) {
+        String base = (originalName != null)
+                      ? originalName.replaceFirst("\\.fit$", "")
+                      : "output";
+        return base + "_injected_grade_" + (int)(grade * 100) + ".fit";
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<String> badRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(e.getMessage());
+    }
+
+    @ExceptionHandler(ActivityCache.UnknownTokenException.class)
+    public ResponseEntity<String> unknownToken(ActivityCache.UnknownTokenException e) {
+        return ResponseEntity.status(HttpStatus.GONE).body(e.getMessage());
+    }
+
+    @ExceptionHandler(RouteRegistry.UnknownRouteException.class)
+    public ResponseEntity<String> unknownRoute(RouteRegistry.UnknownRouteException e) {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body(e.getMessage());
+    }
+
+    @ExceptionHandler(OverloadedException.class)
+    public ResponseEntity<String> overloaded(OverloadedException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body(e.getMessage());
+    }
+
+    @ExceptionHandler(FitRuntimeException.class)
+    public ResponseEntity<String> badFit(FitRuntimeException e) {
+        return ResponseEntity.badRequest().body("Invalid FIT file: " + e.getMessage());
+    }
+}
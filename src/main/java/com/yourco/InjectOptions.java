@@ -0,0 +1,78 @@
+package com.yourco;
+
+import java.util.Map;
+
+/**
+ * Parameters for one inject run. Immutable and validated on construction, so a bad
+ * request fails fast with {@link IllegalArgumentException} instead of reaching the encoder.
+ *
+ * @param lat      start latitude (degrees)
+ * @param lon      start longitude (degrees)
+ * @param alt      start altitude (m)
+ * @param bearing  direction of travel (degrees, 0 = north), normalized to [0, 360)
+ * @param grade    incline as a fraction (0.10 = 10%)
+ * @param virtual  tag the activity as a virtual run
+ * @param route    course to follow instead of the straight line from lat/lon along bearing, or null.
+ *                 Its elevation, when it has one, replaces alt and grade
+ */
+public record InjectOptions(double lat, double lon, float alt, double bearing, double grade, boolean virtual, Route route) {
+
+    public InjectOptions(double lat, double lon, float alt, double bearing, double grade, boolean virtual) {
+        this(lat, lon, alt, bearing, grade, virtual, null);
+    }
+
+    public InjectOptions {
+        if (!(lat >= -90 && lat <= 90))   throw new IllegalArgumentException("lat must be within [-90, 90]: " + lat);
+        if (!(lon >= -180 && lon <= 180)) throw new IllegalArgumentException("lon must be within [-180, 180]: " + lon);
+        if (!Float.isFinite(alt))         throw new IllegalArgumentException("alt must be a finite number: " + alt);
+        if (!Double.isFinite(bearing))    throw new IllegalArgumentException("bearing must be a finite number: " + bearing);
+        if (!Double.isFinite(grade))      throw new IllegalArgumentException("grade must be a finite number: " + grade);
+        // The SESSION bounding box picks its corners for a bearing within [0, 360)
+        bearing = ((bearing % 360) + 360) % 360;
+    }
+
+    /**
+     * Copy with some parameters replaced, e.g. a per-file override in a batch.
+     * Keys are the component names; values may be numbers, booleans or strings.
+     */
+    public InjectOptions with(Map<String, ?> overrides) {
+        double lat = this.lat, lon = this.lon, bearing = this.bearing, grade = this.grade;
+        float alt = this.alt;
+        boolean virtual = this.virtual;
+        for (var e : overrides.entrySet()) {
+            Object v = e.getValue();
+            switch (e.getKey()) {
+                case "lat"     -> lat     = number(e.getKey(), v);
+                case "lon"     -> lon     = number(e.getKey(), v);
+                case "alt"     -> alt     = (float) number(e.getKey(), v);
+                case "bearing" -> bearing = number(e.getKey(), v);
+                case "grade"   -> grade   = number(e.getKey(), v);
+                case "virtual" -> virtual = v instanceof Boolean b ? b : Boolean.parseBoolean(String.valueOf(v));
+                default -> throw new IllegalArgumentException("unknown option: " + e.getKey());
+            }
+        }
+        return new InjectOptions(lat, lon, alt, bearing, grade, virtual, route);
+    }
+
+    /** Copy that follows {@code route} (null: the straight line again). */
+    public InjectOptions withRoute(Route route) {
+        return new InjectOptions(lat, lon, alt, bearing, grade, virtual, route);
+    }
+
+    private static double number(String key, Object v) {
+        if (v instanceof Number n) return n.doubleValue();
+        try {
+            return Double.parseDouble(String.valueOf(v));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be a number: " + v);
+        }
+    }
+
+    /** Values every record needs, derived from the options once per run. */
+    record Resolved(InjectOptions opts, short subVal, double cosB, double sinB) {}
+
+    Resolved resolve() {
+        double rad = Math.toRadians(bearing);
+        return new Resolved(this, AddInclineFitGem.subSportFor(virtual), Math.cos(rad), Math.sin(rad));
+    }
+}
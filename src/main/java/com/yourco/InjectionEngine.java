@@ -0,0 +1,81 @@
+package com.yourco;
+
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Server-side entry point for injections.
+ *
+ * Holds no per-request state: options arrive as an immutable {@link InjectOptions},
+ * the virtual SubSport value is resolved once at startup and decode scratch is kept
+ * per thread, so a single instance is shared by all request threads.
+ */
+@Service
+public class InjectionEngine {
+
+    public InjectionEngine() {
+        AddInclineFitGem.subSportFor(true); // resolve the reflective SubSport lookup up front
+    }
+
+    /** Decodes {@code in}, injects the synthetic track and writes the encoded FIT to {@code out}. */
+    public void inject(InputStream in, OutputStream out, InjectOptions opts) throws IOException {
+        AddInclineFitGem.inject(in, out, opts);
+    }
+
+    /** Same as {@link #inject(InputStream, OutputStream, InjectOptions)} for an upload already in memory. */
+    public void inject(byte[] in, OutputStream out, InjectOptions opts) throws IOException {
+        admit(in);
+        AddInclineFitGem.inject(in, out, opts);
+    }
+
+    /** Decode phase only: messages plus resolved RECORD distances, reusable for any options. */
+    AddInclineFitGem.PreparedActivity prepare(byte[] in) {
+        admit(in);
+        return AddInclineFitGem.prepare(new ByteArrayInputStream(in), "upload");
+    }
+
+    /**
+     * Decode phase straight off a stream (a request body as it arrives), without the admission
+     * scan: that would need the whole upload first, and the decoder checks the CRC itself.
+     */
+    AddInclineFitGem.PreparedActivity prepare(InputStream in) {
+        return AddInclineFitGem.prepare(in, "upload");
+    }
+
+    /**
+     * Admission check for an upload: header, record layout and CRC from a raw scan, a small
+     * fraction of the cost of decoding, so a broken file is turned away before decode allocates.
+     */
+    FitScan.Census admit(byte[] in) {
+        return FitMetrics.time(FitMetrics.INJECT, "scan", () -> FitScan.scan(in));
+    }
+
+    /** Definition-level census of {@code in}, without decoding field values. */
+    FitScan.Census scan(InputStream in) throws IOException {
+        return FitMetrics.time(FitMetrics.ANALYSE, "scan", () -> FitScan.scan(in));
+    }
+
+    /** Summary and downsampled profile an inject would produce, without rewriting or encoding anything. */
+    AddInclineFitGem.Preview preview(AddInclineFitGem.PreparedActivity act, InjectOptions opts, int points) {
+        return AddInclineFitGem.preview(act, opts, points);
+    }
+
+    /** Decodes {@code in} and gathers the analyse report for it. */
+    FitAnalysis analyse(InputStream in, String name) {
+        return AddInclineFitGem.analyse(in, name);
+    }
+
+    /** Inject phase on an activity from {@link #prepare}, sized up front and written on demand. */
+    AddInclineFitGem.Injection injection(AddInclineFitGem.PreparedActivity act, InjectOptions opts) {
+        return AddInclineFitGem.injection(act, opts);
+    }
+
+    /** Inject phase only, on an activity from {@link #prepare}. */
+    void inject(AddInclineFitGem.PreparedActivity act, OutputStream out, InjectOptions opts) throws IOException {
+        AddInclineFitGem.inject(act, out, opts);
+    }
+}
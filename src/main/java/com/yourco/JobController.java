@@ -0,0 +1,121 @@
+package com.yourco;
+
+import com.garmin.fit.FitRuntimeException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Asynchronous variant of {@code /inject}: {@code POST /jobs} queues the upload and answers
+ * 202 with a job id, {@code GET /jobs/{id}} reports its status and
+ * {@code GET /jobs/{id}/result} downloads the FIT once it is done.
+ */
+@RestController
+@RequestMapping("/jobs")
+public class JobController {
+
+    /** Status document returned by {@code POST /jobs} and {@code GET /jobs/{id}}. */
+    public record JobStatus(String id, JobService.State state, Instant created, Instant finished,
+                            String error, String result) {
+
+        static JobStatus of(JobService.Job job) {
+            String error = job.error() == null ? null
+                         : job.error() instanceof FitRuntimeException ? "Invalid FIT file: " + job.error().getMessage()
+                         : job.error().getMessage();
+            String result = job.state() == JobService.State.DONE ? "/jobs/" + job.id() + "/result" : null;
+            return new JobStatus(job.id(), job.state(), job.created(), job.finished(), error, result);
+        }
+    }
+
+    private final JobService jobs;
+    private final RouteRegistry routes;
+
+    public JobController(JobService jobs, RouteRegistry routes) {
+        this.jobs = jobs;
+        this.routes = routes;
+    }
+
+    @PostMapping(consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<JobStatus> submit(
+            @RequestParam(name="file") MultipartFile file,
+            @RequestParam(name="lat",     defaultValue="42.036369") double lat,
+            @RequestParam(name="lon",     defaultValue="-91.638498") double lon,
+            @RequestParam(name="alt",     defaultValue="0")      float alt,
+            @RequestParam(name="bearing", defaultValue="0")      double bearing,
+            @RequestParam(name="virtual", defaultValue="false")   boolean virtual,
+            @RequestParam(name="grade",   defaultValue="0.10")    double grade,
+            @RequestParam(name="name",    required=false)         String outputName,
+            @RequestParam(name="course",  required=false)         MultipartFile course,
+            @RequestParam(name="route",   required=false)         String route,
+            @RequestAttribute(name=RequestStartFilter.START, required=false) Long started
+            ) throws Exception {
+
+                FitMetrics.since(FitMetrics.INJECT, "upload", started);
+
+                // Validate before queueing; the upload has to be copied out of the request anyway
+                var opts = routes.routed(new InjectOptions(lat, lon, alt, bearing, grade, virtual), course, route);
+                String dlName = (outputName != null && !outputName.isBlank())
+                              ? outputName
+                              : InjectController.outputName(file.getOriginalFilename(), grade);
+
+                var job = jobs.submit(file.getBytes(), opts, dlName);
+                return ResponseEntity.accepted()
+                        .location(URI.create("/jobs/" + job.id()))
+                        .body(JobStatus.of(job));
+            }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<JobStatus> status(@PathVariable String id) {
+        var job = jobs.get(id);
+        if (job == null) return ResponseEntity.notFound().build();
+        return ResponseEntity.ok(JobStatus.of(job));
+    }
+
+    @GetMapping("/{id}/result")
+    public ResponseEntity<?> result(@PathVariable String id) {
+        var job = jobs.get(id);
+        if (job == null) return ResponseEntity.notFound().build();
+        return switch (job.state()) {
+            case DONE -> ResponseEntity.ok()
+                    .header(HttpHeaders.CONTENT_DISPOSITION,
+                            "attachment; filename=\"" + job.outputName() + "\"")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .body(job.result());
+            // Only a bad upload is the client's fault; a job the CPU bulkhead turned away can be
+            // submitted again, anything else failed on our side
+            case FAILED -> job.error() instanceof OverloadedException
+                    ? ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                            .header(HttpHeaders.RETRY_AFTER, "1")
+                            .body(JobStatus.of(job).error())
+                    : ResponseEntity.status(job.badInput() ? HttpStatus.BAD_REQUEST : HttpStatus.INTERNAL_SERVER_ERROR)
+                            .body(JobStatus.of(job).error());
+            default -> ResponseEntity.status(HttpStatus.CONFLICT)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(jobs.retryAfterSeconds()))
+                    .body(JobStatus.of(job));
+        };
+    }
+
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<String> busy(RejectedExecutionException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(jobs.retryAfterSeconds()))
+                .body("Job queue is full, retry later");
+    }
+
+    @ExceptionHandler(RouteRegistry.UnknownRouteException.class)
+    public ResponseEntity<String> unknownRoute(RouteRegistry.UnknownRouteException e) {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body(e.getMessage());
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<String> badRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(e.getMessage());
+    }
+}
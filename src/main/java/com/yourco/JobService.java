@@ -0,0 +1,151 @@
+package com.yourco;
+
+import com.garmin.fit.FitRuntimeException;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Asynchronous injections: the upload is queued, a job id comes back at once and the
+ * result is collected later, so the HTTP connection no longer lives as long as the work.
+ *
+ * Jobs run on a fixed pool ({@code inject.jobs.threads}, default one per core) behind a
+ * bounded queue ({@code inject.jobs.queue}); when it is full {@link #submit} throws
+ * {@link RejectedExecutionException} straight away. A job thread runs the injection itself on
+ * the shared {@link CpuBulkhead}; a job the bulkhead turns away fails with
+ * {@link OverloadedException}, as does one that gets no heap from the {@link MemoryBudget}
+ * within {@code inject.memory.max-wait}; the budget is held while the job decodes. Finished jobs stay in the in-memory
+ * table for {@code inject.jobs.ttl} and are then evicted together with their result.
+ */
+@Service
+public class JobService {
+
+    public enum State { QUEUED, RUNNING, DONE, FAILED }
+
+    /** One queued or finished injection. Mutable state is only written by the worker running it. */
+    public static final class Job {
+        final String id = UUID.randomUUID().toString();
+        final String outputName;
+        final Instant created = Instant.now();
+        volatile State state = State.QUEUED;
+        volatile Instant finished;
+        volatile byte[] result;
+        volatile Throwable error;
+        volatile boolean badInput;   // failed on the upload or options, not on the server
+
+        Job(String outputName) { this.outputName = outputName; }
+
+        public String id()          { return id; }
+        public String outputName()  { return outputName; }
+        public Instant created()    { return created; }
+        public State state()        { return state; }
+        public Instant finished()   { return finished; }
+        public byte[] result()      { return result; }
+        public Throwable error()    { return error; }
+        public boolean badInput()   { return badInput; }
+    }
+
+    private final InjectionEngine engine;
+    private final CpuBulkhead cpu;
+    private final MemoryBudget memory;
+    private final ThreadPoolExecutor pool;
+    private final ScheduledExecutorService sweeper;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final Duration ttl;
+    private volatile double avgJobMillis = 1000; // running estimate for Retry-After
+
+    public JobService(InjectionEngine engine, CpuBulkhead cpu, MemoryBudget memory,
+                      @Value("${inject.jobs.threads:0}") int threads,
+                      @Value("${inject.jobs.queue:64}") int queue,
+                      @Value("${inject.jobs.ttl:15m}") Duration ttl) {
+        int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.engine = engine;
+        this.cpu = cpu;
+        this.memory = memory;
+        this.ttl = ttl;
+        this.pool = new ThreadPoolExecutor(n, n, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue));
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "job-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long every = Math.max(1, ttl.toSeconds() / 4);
+        sweeper.scheduleWithFixedDelay(this::evictExpired, every, every, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Queues an injection of {@code data}.
+     *
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public Job submit(byte[] data, InjectOptions opts, String outputName) {
+        var job = new Job(outputName);
+        jobs.put(job.id, job);
+        try {
+            pool.execute(() -> run(job, data, opts));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            throw e;
+        }
+        return job;
+    }
+
+    /** The job, or {@code null} if it never existed or has been evicted. */
+    public Job get(String id) {
+        return jobs.get(id);
+    }
+
+    /** Seconds a rejected client should wait: the queued work spread over the pool. */
+    public long retryAfterSeconds() {
+        double queuedMillis = avgJobMillis * (pool.getQueue().size() + pool.getActiveCount());
+        return Math.max(1, (long) Math.ceil(queuedMillis / pool.getMaximumPoolSize() / 1000));
+    }
+
+    private void run(Job job, byte[] data, InjectOptions opts) {
+        job.state = State.RUNNING;
+        long start = System.nanoTime();
+        // Runs after the request has ended: diagnostics carry the job id the client polls
+        String previous = FitDiagnostics.tag("job:" + job.id);
+        try {
+            var held = memory.reserve(data, data.length);
+            try {
+                job.result = cpu.call(FitMetrics.JOB, () -> {
+                    var out = new ByteArrayOutputStream(Math.max(data.length, 32));
+                    engine.inject(data, out, opts);
+                    return out.toByteArray();
+                });
+            } finally {
+                held.close();
+            }
+            job.state = State.DONE;
+        } catch (Throwable e) {
+            // Errors too (e.g. OutOfMemoryError on a huge file): the job must not stay RUNNING
+            job.error = e;
+            job.badInput = e instanceof IllegalArgumentException || e instanceof FitRuntimeException;
+            job.state = State.FAILED;
+            if (e instanceof Error) FitDiagnostics.warn("Job {} failed: {}", job.id, e.toString());
+        } finally {
+            FitDiagnostics.tag(previous);
+            job.finished = Instant.now();
+            avgJobMillis = 0.8 * avgJobMillis + 0.2 * (System.nanoTime() - start) / 1e6;
+        }
+    }
+
+    private void evictExpired() {
+        Instant cutoff = Instant.now().minus(ttl);
+        jobs.values().removeIf(j -> j.finished != null && j.finished.isBefore(cutoff));
+    }
+
+    @PreDestroy
+    void shutdown() {
+        sweeper.shutdownNow();
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,110 @@
+package com.yourco;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file through read-only memory mappings, for the CLI's inject/analyse/scan inputs.
+ *
+ * The SDK decoder pulls its input a byte or a few bytes at a time; from a mapping each of
+ * those is a buffer read instead of a {@code read} syscall, nothing is copied onto the heap,
+ * and parallel runs over the same file share its page-cache pages. Files over 2 GB (multi-day
+ * or concatenated archives) are mapped in consecutive segments as the reader gets to them.
+ */
+final class MappedFileInputStream extends InputStream {
+
+    // Largest page-aligned mapping a single MappedByteBuffer can hold
+    private static final long SEGMENT = Integer.MAX_VALUE & ~0xFFFFL;
+
+    private final FileChannel channel;
+    private final long size;
+    private long segmentStart;
+    private MappedByteBuffer buf;
+    private long mark;
+
+    private MappedFileInputStream(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        map(0);
+    }
+
+    static MappedFileInputStream open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new MappedFileInputStream(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Bytes in the file. */
+    long size() { return size; }
+
+    private long position() { return segmentStart + buf.position(); }
+
+    private void map(long position) throws IOException {
+        if (!channel.isOpen()) throw new IOException("Stream closed");
+        segmentStart = Math.min(position - position % SEGMENT, size);
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, Math.min(SEGMENT, size - segmentStart));
+        buf.position((int) (position - segmentStart));
+    }
+
+    // Moves to the next segment when the current one is used up; false at end of file
+    private boolean ensure() throws IOException {
+        if (buf.hasRemaining()) return true;
+        if (position() >= size) return false;
+        map(position());
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return ensure() ? buf.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!ensure()) return -1;
+        int n = Math.min(len, buf.remaining());
+        buf.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) return 0;
+        long target = Math.min(size, position() + n), skipped = target - position();
+        if (target - segmentStart <= buf.limit()) buf.position((int) (target - segmentStart));
+        else map(target);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, size - position());
+    }
+
+    @Override
+    public boolean markSupported() { return true; }
+
+    @Override
+    public synchronized void mark(int readLimit) { mark = position(); }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        if (mark >= segmentStart && mark - segmentStart <= buf.limit()) buf.position((int) (mark - segmentStart));
+        else map(mark);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The mapping itself is released once unreachable; closing the channel does not unmap it
+        channel.close();
+    }
+}
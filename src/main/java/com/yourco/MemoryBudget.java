@@ -0,0 +1,160 @@
+package com.yourco;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Heap admission for decodes. The FIT header states the size of the records before anything
+ * is decoded, so a request reserves {@link #HEAP_PER_FIT_BYTE} times that from a global budget
+ * ({@code inject.memory.budget}) before it decodes, and gives it back once its response is
+ * written. What the activity and result caches keep afterwards is not reserved, so the default
+ * budget is half the max heap less both caches' sizes (but at least an eighth of the heap).
+ *
+ * Files over {@code inject.memory.large-file} go through a throttled lane: together they may
+ * hold at most {@code inject.memory.large-share} of the budget, so the rest always stays free
+ * for small files, which never wait behind a day-long upload. A reservation larger than its
+ * lane is cut down to the whole lane, so such a file still runs, alone. A request that cannot
+ * get its budget within {@code inject.memory.max-wait} fails with {@link OverloadedException} (503).
+ *
+ * Metrics: {@code fit.memory.reserved} gauge (bytes), the {@code fit.memory.wait} timer and
+ * {@code fit.memory.rejected} counter, both per {@code lane} (small/large).
+ */
+@Service
+public class MemoryBudget {
+
+    // Heap per byte of FIT records once decoded: the Mesg/Field objects and record columns
+    // retain 62-77 B per file byte (1-24 h files), plus room for the rewrite
+    static final int HEAP_PER_FIT_BYTE = 80;
+
+    /** Bytes to {@link UploadStream#peek} for {@link #reserve}: header size, versions, data size, ".FIT". */
+    static final int HEADER_PEEK = 12;
+
+    private static final int UNIT = 1024; // one permit
+
+    /** Budget held by one request; closing it gives it back, closing it again does nothing. */
+    static final class Reservation implements AutoCloseable {
+        static final Reservation NONE = new Reservation(null, false, 0);
+
+        private final MemoryBudget budget;
+        private final boolean large;
+        private final int units;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Reservation(MemoryBudget budget, boolean large, int units) {
+            this.budget = budget; this.large = large; this.units = units;
+        }
+
+        /** Bytes of FIT file this covers: less than asked for when cut down to its lane. */
+        long bytes() {
+            return (long) units * UNIT / HEAP_PER_FIT_BYTE;
+        }
+
+        @Override
+        public void close() {
+            if (budget != null && released.compareAndSet(false, true)) budget.release(this);
+        }
+    }
+
+    private final Semaphore total, large;
+    private final int totalUnits, largeUnits;
+    private final long largeFile, maxWaitNanos;
+    private final Timer smallWait, largeWait;
+    private final Counter smallRejected, largeRejected;
+
+    public MemoryBudget(MeterRegistry registry,
+                        @Value("${inject.memory.budget:0}") DataSize budget,
+                        @Value("${inject.memory.large-file:1MB}") DataSize largeFile,
+                        @Value("${inject.memory.large-share:0.5}") double largeShare,
+                        @Value("${inject.memory.max-wait:10s}") Duration maxWait,
+                        @Value("${inject.activity-cache.max-size:256MB}") DataSize activityCache,
+                        @Value("${inject.cache.max-size:64MB}") DataSize resultCache) {
+        long heap = Runtime.getRuntime().maxMemory();
+        long bytes = budget.toBytes() > 0 ? budget.toBytes()
+                   : Math.max(heap / 8, heap / 2 - activityCache.toBytes() - resultCache.toBytes());
+        this.totalUnits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes / UNIT));
+        this.largeUnits = (int) Math.max(1, totalUnits * Math.min(1, Math.max(0, largeShare)));
+        // Not fair: small files may pass a large one that is still waiting for room
+        this.total = new Semaphore(totalUnits);
+        this.large = new Semaphore(largeUnits);
+        this.largeFile = largeFile.toBytes();
+        this.maxWaitNanos = maxWait.toNanos();
+        Gauge.builder("fit.memory.reserved", total, s -> (double) (totalUnits - s.availablePermits()) * UNIT)
+             .description("Heap reserved by FIT requests in flight").baseUnit("bytes").register(registry);
+        this.smallWait     = waitTimer(registry, "small");
+        this.largeWait     = waitTimer(registry, "large");
+        this.smallRejected = rejected(registry, "small");
+        this.largeRejected = rejected(registry, "large");
+    }
+
+    /**
+     * Reserves the heap to decode a FIT whose first bytes are {@code header} and whose length
+     * is {@code length}. The larger of the header's data size and the length counts, so chained
+     * files are covered. A caller that does not know the length passes the most it will read,
+     * and keeps the body to {@link Reservation#bytes}. Without either nothing is reserved and
+     * the decode rejects the file.
+     *
+     * @throws OverloadedException if the budget is not there within {@code inject.memory.max-wait}
+     */
+    Reservation reserve(byte[] header, long length) throws InterruptedException {
+        long size = Math.max(dataSize(header), length);
+        if (size <= 0) return Reservation.NONE;
+        boolean isLarge = size > largeFile;
+        long units = (size * HEAP_PER_FIT_BYTE + UNIT - 1) / UNIT;
+        int n = (int) Math.min(units, isLarge ? largeUnits : totalUnits);
+
+        long start = System.nanoTime();
+        boolean admitted;
+        if (isLarge) {
+            admitted = large.tryAcquire(n, maxWaitNanos, TimeUnit.NANOSECONDS);
+            if (admitted && !total.tryAcquire(n, maxWaitNanos - (System.nanoTime() - start), TimeUnit.NANOSECONDS)) {
+                large.release(n);
+                admitted = false;
+            }
+        } else {
+            admitted = total.tryAcquire(n, maxWaitNanos, TimeUnit.NANOSECONDS);
+        }
+        (isLarge ? largeWait : smallWait).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (!admitted) {
+            (isLarge ? largeRejected : smallRejected).increment();
+            throw new OverloadedException("Server busy: no memory free for a " + size / 1024 + " KB FIT file");
+        }
+        return new Reservation(this, isLarge, n);
+    }
+
+    private void release(Reservation r) {
+        total.release(r.units);
+        if (r.large) large.release(r.units);
+    }
+
+    // Record bytes from a FIT header, or -1 if this is not one
+    static long dataSize(byte[] h) {
+        if (h.length < HEADER_PEEK || (h[0] & 0xFF) < HEADER_PEEK
+                || h[8] != '.' || h[9] != 'F' || h[10] != 'I' || h[11] != 'T') return -1;
+        return (h[4] & 0xFF) | (h[5] & 0xFF) << 8 | (h[6] & 0xFF) << 16 | (long) (h[7] & 0xFF) << 24;
+    }
+
+    private static Timer waitTimer(MeterRegistry registry, String lane) {
+        return Timer.builder("fit.memory.wait")
+                    .description("Time a FIT request waited for heap budget")
+                    .tag("lane", lane)
+                    .publishPercentileHistogram()
+                    .register(registry);
+    }
+
+    private static Counter rejected(MeterRegistry registry, String lane) {
+        return Counter.builder("fit.memory.rejected")
+                      .description("FIT requests turned away with 503 for lack of heap budget")
+                      .tag("lane", lane)
+                      .register(registry);
+    }
+}
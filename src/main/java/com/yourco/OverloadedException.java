@@ -0,0 +1,8 @@
+package com.yourco;
+
+/** No capacity for this request right now (CPU or memory); the client should retry shortly (503). */
+final class OverloadedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    OverloadedException(String message) { super(message); }
+}
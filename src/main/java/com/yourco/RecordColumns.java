@@ -0,0 +1,184 @@
+package com.yourco;
+
+import com.garmin.fit.*;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Columnar view of the RECORD messages of one activity.
+ *
+ * Filled once while decoding: each record's field list is walked a single time and the
+ * values both modes need land in parallel primitive arrays, with one presence bitset per
+ * column. Missing floats are stored as {@code NaN}, so {@link #distance} can go straight
+ * into {@link DistanceInterpolator#fill}.
+ *
+ * Inject also needs the decoded messages themselves (every other field is copied through),
+ * so they are retained alongside the columns.
+ */
+final class RecordColumns {
+
+    // Presence columns
+    static final int TIMESTAMP = 0, POSITION_LAT = 1, POSITION_LONG = 2, DISTANCE = 3, ALTITUDE = 4,
+                     ENHANCED_ALTITUDE = 5, SPEED = 6, ENHANCED_SPEED = 7, GRADE = 8, VERTICAL_RATIO = 9;
+    static final int COLUMNS = 10;
+
+    private final BitSet[] present = new BitSet[COLUMNS];
+    private int size;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private boolean backwards;                // some timestamp is earlier than one before it
+
+    long[]  timestamp;
+    int[]   positionLat, positionLong;        // semicircles
+    float[] distance;                         // m, NaN = absent
+    float[] enhancedAltitude;                 // m, falls back to legacy altitude, NaN = absent
+    float[] speed;                            // m/s, enhanced if present else legacy, NaN = absent
+    private Mesg[] mesgs;
+
+    RecordColumns() {
+        this(1024);
+    }
+
+    RecordColumns(int capacity) {
+        for (int c = 0; c < COLUMNS; c++) present[c] = new BitSet(capacity);
+        timestamp        = new long[capacity];
+        positionLat      = new int[capacity];
+        positionLong     = new int[capacity];
+        distance         = new float[capacity];
+        enhancedAltitude = new float[capacity];
+        speed            = new float[capacity];
+        mesgs            = new Mesg[capacity];
+    }
+
+    int size() { return size; }
+
+    boolean has(int column, int row) { return present[column].get(row); }
+
+    int count(int column) { return present[column].cardinality(); }
+
+    /** Rows where both columns are present. */
+    int countBoth(int a, int b) {
+        BitSet both = (BitSet) present[a].clone();
+        both.and(present[b]);
+        return both.cardinality();
+    }
+
+    /** Whether the timestamps present never step backwards in file order. */
+    boolean ascending() { return !backwards; }
+
+    /** Decoded message for a row. */
+    Mesg mesg(int row) { return mesgs[row]; }
+
+    /** Last distance present in the source, in file order, or {@code NaN}. */
+    float lastDistance() {
+        int row = present[DISTANCE].previousSetBit(size - 1);
+        return row >= 0 ? distance[row] : Float.NaN;
+    }
+
+    /** Presence column of a RECORD field number, or -1 for fields not tracked here. */
+    static int column(int fieldNum) {
+        return switch (fieldNum) {
+            case RecordMesg.TimestampFieldNum        -> TIMESTAMP;
+            case RecordMesg.PositionLatFieldNum      -> POSITION_LAT;
+            case RecordMesg.PositionLongFieldNum     -> POSITION_LONG;
+            case RecordMesg.DistanceFieldNum         -> DISTANCE;
+            case RecordMesg.AltitudeFieldNum         -> ALTITUDE;
+            case RecordMesg.EnhancedAltitudeFieldNum -> ENHANCED_ALTITUDE;
+            case RecordMesg.SpeedFieldNum            -> SPEED;
+            case RecordMesg.EnhancedSpeedFieldNum    -> ENHANCED_SPEED;
+            case RecordMesg.GradeFieldNum            -> GRADE;
+            case RecordMesg.VerticalRatioFieldNum    -> VERTICAL_RATIO;
+            default                                  -> -1;
+        };
+    }
+
+    /** Appends one RECORD, reading every field in a single pass over its field list. */
+    void add(Mesg m) {
+        if (size == timestamp.length) grow();
+        int row = size++;
+        float altitude = Float.NaN, enhAltitude = Float.NaN, legacySpeed = Float.NaN, enhSpeed = Float.NaN;
+        distance[row] = Float.NaN;
+
+        for (com.garmin.fit.Field f : m.getFields()) {
+            if (f.getNumValues() == 0) continue;
+            switch (f.getNum()) {
+                case RecordMesg.TimestampFieldNum -> {
+                    Long v = f.getLongValue(0);
+                    if (v != null) {
+                        timestamp[row] = v; present[TIMESTAMP].set(row);
+                        if (v < lastTimestamp) backwards = true;
+                        lastTimestamp = v;
+                    }
+                }
+                case RecordMesg.PositionLatFieldNum -> {
+                    Integer v = f.getIntegerValue(0);
+                    if (v != null) { positionLat[row] = v; present[POSITION_LAT].set(row); }
+                }
+                case RecordMesg.PositionLongFieldNum -> {
+                    Integer v = f.getIntegerValue(0);
+                    if (v != null) { positionLong[row] = v; present[POSITION_LONG].set(row); }
+                }
+                case RecordMesg.DistanceFieldNum -> {
+                    Float v = f.getFloatValue(0);
+                    if (v != null) { distance[row] = v; present[DISTANCE].set(row); }
+                }
+                case RecordMesg.AltitudeFieldNum -> {
+                    Float v = f.getFloatValue(0);
+                    if (v != null) { altitude = v; present[ALTITUDE].set(row); }
+                }
+                case RecordMesg.EnhancedAltitudeFieldNum -> {
+                    Float v = f.getFloatValue(0);
+                    if (v != null) { enhAltitude = v; present[ENHANCED_ALTITUDE].set(row); }
+                }
+                case RecordMesg.SpeedFieldNum -> {
+                    Float v = f.getFloatValue(0);
+                    if (v != null) { legacySpeed = v; present[SPEED].set(row); }
+                }
+                case RecordMesg.EnhancedSpeedFieldNum -> {
+                    Float v = f.getFloatValue(0);
+                    if (v != null) { enhSpeed = v; present[ENHANCED_SPEED].set(row); }
+                }
+                case RecordMesg.GradeFieldNum -> {
+                    if (f.getValue(0) != null) present[GRADE].set(row);
+                }
+                case RecordMesg.VerticalRatioFieldNum -> {
+                    if (f.getValue(0) != null) present[VERTICAL_RATIO].set(row);
+                }
+                default -> { }
+            }
+        }
+        enhancedAltitude[row] = Float.isNaN(enhAltitude) ? altitude : enhAltitude;
+        speed[row]            = Float.isNaN(enhSpeed) ? legacySpeed : enhSpeed;
+        mesgs[row] = m;
+    }
+
+    /** This store if every row has a timestamp, otherwise a copy holding only the rows that do. */
+    RecordColumns timestamped() {
+        if (count(TIMESTAMP) == size) return this;
+        var out = new RecordColumns(Math.max(1, count(TIMESTAMP)));
+        out.backwards = backwards;
+        out.lastTimestamp = lastTimestamp;
+        for (int row = present[TIMESTAMP].nextSetBit(0); row >= 0 && row < size; row = present[TIMESTAMP].nextSetBit(row + 1)) {
+            int r = out.size++;
+            out.timestamp[r]        = timestamp[row];
+            out.positionLat[r]      = positionLat[row];
+            out.positionLong[r]     = positionLong[row];
+            out.distance[r]         = distance[row];
+            out.enhancedAltitude[r] = enhancedAltitude[row];
+            out.speed[r]            = speed[row];
+            out.mesgs[r]            = mesgs[row];
+            for (int c = 0; c < COLUMNS; c++) if (present[c].get(row)) out.present[c].set(r);
+        }
+        return out;
+    }
+
+    private void grow() {
+        int cap = timestamp.length * 2;
+        timestamp        = Arrays.copyOf(timestamp, cap);
+        positionLat      = Arrays.copyOf(positionLat, cap);
+        positionLong     = Arrays.copyOf(positionLong, cap);
+        distance         = Arrays.copyOf(distance, cap);
+        enhancedAltitude = Arrays.copyOf(enhancedAltitude, cap);
+        speed            = Arrays.copyOf(speed, cap);
+        mesgs            = Arrays.copyOf(mesgs, cap);
+    }
+}
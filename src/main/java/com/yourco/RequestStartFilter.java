@@ -0,0 +1,51 @@
+package com.yourco;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Stamps each request with the time it arrived, before its body is read, and with a request id.
+ *
+ * A multipart upload is read and parsed by the dispatcher before the handler runs, so the
+ * handler can only measure the upload from this stamp: {@code fit.phase{phase=upload}} is
+ * the time from here to handler entry.
+ *
+ * The id is the client's {@code X-Request-Id} when it sends a plain one, else a fresh UUID. It
+ * is echoed in the response header and tags the request's {@link FitDiagnostics} events.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class RequestStartFilter extends OncePerRequestFilter {
+
+    /** Request attribute holding {@link System#nanoTime()} at arrival. */
+    static final String START = "com.yourco.requestStart";
+
+    static final String REQUEST_ID = "X-Request-Id";
+
+    private static final Pattern PLAIN_ID = Pattern.compile("[A-Za-z0-9._:-]{1,64}");
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        request.setAttribute(START, System.nanoTime());
+        String id = request.getHeader(REQUEST_ID);
+        if (id == null || !PLAIN_ID.matcher(id).matches()) id = UUID.randomUUID().toString();
+        response.setHeader(REQUEST_ID, id);
+        String previous = FitDiagnostics.tag(id);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            FitDiagnostics.tag(previous);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.yourco;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Content-addressed cache of injected files.
+ *
+ * The key is a SHA-256 over the upload's own hash and the normalized options, so it doubles
+ * as a strong ETag: the same key always means the same output bytes (see
+ * {@link AddInclineFitGem#deterministicOutput()}). Entries are evicted least recently used
+ * first once their total size exceeds {@code inject.cache.max-size}.
+ */
+@Service
+public class ResultCache {
+
+    // Bump when the inject output changes, so clients drop ETags issued by older builds
+    private static final String FORMAT = "fit-injector/1";
+
+    private final WeightedLru<String, byte[]> entries;
+
+    public ResultCache(@Value("${inject.cache.max-size:64MB}") DataSize maxSize) {
+        this.entries = new WeightedLru<>(maxSize.toBytes(), fit -> fit.length);
+    }
+
+    /** Whether results can be cached at all (false while altitude noise is unseeded). */
+    public boolean enabled() {
+        return entries.maxWeight() > 0 && AddInclineFitGem.deterministicOutput();
+    }
+
+    /** Hex SHA-256 of an upload; also serves as its upload token. */
+    public static String hash(byte[] upload) {
+        return HexFormat.of().formatHex(sha256().digest(upload));
+    }
+
+    /** Hex SHA-256 of an upload (by its {@link #hash}) and the options that shape the output. */
+    public static String key(String uploadHash, InjectOptions o) {
+        // Canonical text of every parameter; -0.0 and 0.0 give the same output
+        String params = FORMAT + "|" + uploadHash + "|" + (o.lat() + 0.0) + "|" + (o.lon() + 0.0) + "|" + (o.alt() + 0.0f)
+                      + "|" + (o.bearing() + 0.0) + "|" + (o.grade() + 0.0) + "|" + o.virtual()
+                      + (o.route() != null ? "|route:" + o.route().id() : "");
+        return HexFormat.of().formatHex(sha256().digest(params.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JRE ships SHA-256
+        }
+    }
+
+    /** Whether a result of this size would be kept at all; larger ones are not worth copying. */
+    public boolean fits(long bytes) {
+        return bytes <= entries.maxWeight();
+    }
+
+    public byte[] get(String key) {
+        return entries.get(key);
+    }
+
+    public void put(String key, byte[] fit) {
+        entries.put(key, fit);
+    }
+}
@@ -0,0 +1,259 @@
+package com.yourco;
+
+import com.garmin.fit.*;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * A course to lay an injected track along instead of a straight line: the points of a GPX
+ * track or route, or the RECORD positions of a FIT course file.
+ *
+ * Parsing keeps the points as primitive columns (positions in semicircles, as FIT stores them)
+ * and builds the cumulative distance to every point once, plus the cumulative ascent and
+ * descent when the course has elevation, so a parsed course can be cached and shared. Placing a record at a distance along the course is
+ * then a binary search for its segment and a linear interpolation within it, O(log n) per
+ * record however long the course. Distances past the end of the course wrap around to its
+ * start, so a run longer than the course goes round it again.
+ */
+final class Route {
+
+    // Mean earth radius that matches METERS_PER_DEG_LAT, so both modes measure the same metre
+    private static final double EARTH_RADIUS = AddInclineFitGem.METERS_PER_DEG_LAT * 180 / Math.PI;
+
+    private static final double DEG_PER_SEMICIRCLE = 180.0 / (1L << 31);
+
+    private final String id;
+    private final int[] lat, lon;               // semicircles
+    private final double[] cum;                 // metres from the first point
+    private final float[] ele;                  // m, null without elevation
+    private final double[] ascent, descent;     // m climbed / descended up to each point, null without elevation
+
+    /** Where a distance along the course lands; filled in by {@link #place}. */
+    static final class Point {
+        double lat, lon;
+        float ele;
+    }
+
+    private Route(String id, int[] lat, int[] lon, float[] ele) {
+        this.id = id;
+        this.lat = lat; this.lon = lon; this.ele = ele;
+        int n = lat.length;
+        this.cum = new double[n];
+        for (int i = 1; i < n; i++) {
+            cum[i] = cum[i - 1] + distance(lat[i - 1] * DEG_PER_SEMICIRCLE, lon[i - 1] * DEG_PER_SEMICIRCLE,
+                                           lat[i] * DEG_PER_SEMICIRCLE, lon[i] * DEG_PER_SEMICIRCLE);
+        }
+        if (ele != null) {
+            this.ascent = new double[n];
+            this.descent = new double[n];
+            for (int i = 1; i < n; i++) {
+                float d = ele[i] - ele[i - 1];
+                ascent[i]  = ascent[i - 1]  + Math.max(0, d);
+                descent[i] = descent[i - 1] + Math.max(0, -d);
+            }
+        } else {
+            this.ascent = this.descent = null;
+        }
+    }
+
+    /**
+     * Parses a GPX (track points, else route points) or FIT course (RECORD positions).
+     *
+     * @throws IllegalArgumentException if it is neither, or has fewer than two distinct points
+     */
+    static Route parse(byte[] data) {
+        boolean fit = data.length >= 12 && data[8] == '.' && data[9] == 'F' && data[10] == 'I' && data[11] == 'T';
+        var points = fit ? fromFit(data) : fromGpx(data);
+        String id = HexFormat.of().formatHex(ResultCache.sha256().digest(data));
+        return points.build(id);
+    }
+
+    /** Content hash of the course file, for cache keys. */
+    String id() { return id; }
+
+    int size() { return lat.length; }
+
+    /** Metres from the first point to the last. */
+    double length() { return cum[cum.length - 1]; }
+
+    boolean hasElevation() { return ele != null; }
+
+    /** Metres climbed over the whole course, 0 without elevation. */
+    double totalAscent() { return ascent != null ? ascent[ascent.length - 1] : 0; }
+
+    /** Metres descended over the whole course, 0 without elevation. */
+    double totalDescent() { return descent != null ? descent[descent.length - 1] : 0; }
+
+    /** Approximate heap held by the parsed columns, for weighing cache entries. */
+    long weight() {
+        return 128 + (long) lat.length * (4 + 4 + 8 + (ele != null ? 4 + 8 + 8 : 0));
+    }
+
+    /** Fills {@code p} with the position (and elevation, if any) {@code d} metres along the course, wrapping past its end. */
+    void place(double d, Point p) {
+        double at = wrap(d);
+        int i = segment(at);
+        double t = fraction(i, at);
+        p.lat = (lat[i] + ((double) lat[i + 1] - lat[i]) * t) * DEG_PER_SEMICIRCLE;
+        p.lon = (lon[i] + ((double) lon[i + 1] - lon[i]) * t) * DEG_PER_SEMICIRCLE;
+        p.ele = ele != null ? (float) (ele[i] + (ele[i + 1] - ele[i]) * t) : Float.NaN;
+    }
+
+    /** Metres climbed between two distances along the course ({@code from <= to}), laps included. */
+    double ascent(double from, double to)  { return climbed(ascent, to) - climbed(ascent, from); }
+
+    /** Metres descended between two distances along the course ({@code from <= to}), laps included. */
+    double descent(double from, double to) { return climbed(descent, to) - climbed(descent, from); }
+
+    // Cumulative climb (ascent or descent column) at a distance, counting whole laps of the course
+    private double climbed(double[] column, double d) {
+        if (column == null) return 0;
+        double laps = Math.floor(d / length());
+        double at = d - laps * length();
+        int i = segment(at);
+        return laps * column[column.length - 1] + column[i] + (column[i + 1] - column[i]) * fraction(i, at);
+    }
+
+    private double wrap(double d) {
+        double at = d % length();
+        return at < 0 ? at + length() : at;
+    }
+
+    // Index of the segment [i, i + 1] holding distance d, 0 <= d <= length
+    private int segment(double d) {
+        int i = Arrays.binarySearch(cum, d);
+        if (i < 0) i = -i - 2;                 // insertion point - 1: last point before d
+        return Math.max(0, Math.min(i, cum.length - 2));
+    }
+
+    private double fraction(int i, double d) {
+        double len = cum[i + 1] - cum[i];
+        return len > 0 ? (d - cum[i]) / len : 0;
+    }
+
+    // Great-circle distance in metres
+    static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double p1 = Math.toRadians(lat1), p2 = Math.toRadians(lat2);
+        double dp = p2 - p1, dl = Math.toRadians(lon2 - lon1);
+        double h = Math.sin(dp / 2) * Math.sin(dp / 2) + Math.cos(p1) * Math.cos(p2) * Math.sin(dl / 2) * Math.sin(dl / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    // RECORD positions of a FIT course (or any FIT with a track), altitude where present
+    private static Points fromFit(byte[] data) {
+        var points = new Points();
+        var bc = new MesgBroadcaster();
+        bc.addListener((RecordMesgListener) r -> {
+            Integer la = r.getPositionLat(), lo = r.getPositionLong();
+            if (la == null || lo == null) return;
+            Float alt = r.getEnhancedAltitude() != null ? r.getEnhancedAltitude() : r.getAltitude();
+            points.add(la, lo, alt);
+        });
+        try {
+            new Decode().read(new ByteArrayInputStream(data), bc, bc);
+        } catch (FitRuntimeException e) {
+            throw new IllegalArgumentException("Course is not a valid FIT file: " + e.getMessage());
+        }
+        return points;
+    }
+
+    // <trkpt> or, failing those, <rtept> lat/lon attributes with their <ele>
+    private static Points fromGpx(byte[] data) {
+        var factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        var track = new Points();
+        var route = new Points();
+        try {
+            XMLStreamReader x = factory.createXMLStreamReader(new ByteArrayInputStream(data));
+            Points into = null;
+            double pLat = 0, pLon = 0;
+            Float pEle = null;
+            while (x.hasNext()) {
+                int event = x.next();
+                if (event == XMLStreamReader.START_ELEMENT) {
+                    switch (x.getLocalName()) {
+                        case "trkpt", "rtept" -> {
+                            into = x.getLocalName().equals("trkpt") ? track : route;
+                            pLat = coordinate(x, "lat");
+                            pLon = coordinate(x, "lon");
+                            pEle = null;
+                        }
+                        case "ele" -> {
+                            if (into != null) pEle = elevation(x.getElementText());
+                        }
+                        default -> { }
+                    }
+                } else if (event == XMLStreamReader.END_ELEMENT && into != null
+                           && (x.getLocalName().equals("trkpt") || x.getLocalName().equals("rtept"))) {
+                    into.add(pLat, pLon, pEle);
+                    into = null;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Course is neither a FIT file nor valid GPX: " + e.getMessage());
+        }
+        return track.size > 0 ? track : route;
+    }
+
+    private static double coordinate(XMLStreamReader x, String name) {
+        String v = x.getAttributeValue(null, name);
+        try {
+            return Double.parseDouble(v);
+        } catch (NullPointerException | NumberFormatException e) {
+            throw new IllegalArgumentException("GPX point without a valid " + name + ": " + v);
+        }
+    }
+
+    private static Float elevation(String text) {
+        try {
+            return Float.parseFloat(text.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Growable point columns; repeated positions are dropped so every segment has a length
+    private static final class Points {
+        int[] lat = new int[256], lon = new int[256];
+        float[] ele = new float[256];
+        boolean allEle = true;
+        int size;
+
+        // Degrees, as GPX has them; +180 longitude is kept just inside the semicircle range
+        void add(double la, double lo, Float e) {
+            if (!(la >= -90 && la <= 90 && lo >= -180 && lo <= 180)) {
+                throw new IllegalArgumentException("Course point out of range: " + la + ", " + lo);
+            }
+            add((int) Math.round(la / DEG_PER_SEMICIRCLE),
+                (int) Math.min(Integer.MAX_VALUE, Math.round(lo / DEG_PER_SEMICIRCLE)), e);
+        }
+
+        // Semicircles, as FIT has them
+        void add(int la, int lo, Float e) {
+            if (la > 1 << 30 || la < -(1 << 30)) {
+                throw new IllegalArgumentException("Course point out of range: " + la * DEG_PER_SEMICIRCLE + ", " + lo * DEG_PER_SEMICIRCLE);
+            }
+            if (size > 0 && lat[size - 1] == la && lon[size - 1] == lo) return;
+            if (size == lat.length) {
+                lat = Arrays.copyOf(lat, size * 2);
+                lon = Arrays.copyOf(lon, size * 2);
+                ele = Arrays.copyOf(ele, size * 2);
+            }
+            lat[size] = la; lon[size] = lo;
+            ele[size] = e != null ? e : Float.NaN;
+            allEle &= e != null;
+            size++;
+        }
+
+        Route build(String id) {
+            if (size < 2) throw new IllegalArgumentException("Course needs at least two distinct points, found " + size);
+            return new Route(id, Arrays.copyOf(lat, size), Arrays.copyOf(lon, size), allEle ? Arrays.copyOf(ele, size) : null);
+        }
+    }
+}
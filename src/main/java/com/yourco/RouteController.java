@@ -0,0 +1,26 @@
+package com.yourco;
+
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * {@code GET /routes}: the saved courses in {@code inject.routes.dir} with their length,
+ * climb and start, for a picker. Pass a name as {@code route} to {@code /inject} to follow it.
+ */
+@RestController
+public class RouteController {
+
+    private final RouteRegistry routes;
+
+    public RouteController(RouteRegistry routes) {
+        this.routes = routes;
+    }
+
+    @GetMapping("/routes")
+    public ResponseEntity<List<RouteRegistry.Summary>> list() {
+        return ResponseEntity.ok(routes.list());
+    }
+}
@@ -0,0 +1,219 @@
+package com.yourco;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Parsed courses, so a course is parsed once and not on every request that follows it.
+ *
+ * Saved courses are the {@code .gpx} and {@code .fit} files in {@code inject.routes.dir},
+ * referenced by file name. They are indexed once the app is ready and again on every listing,
+ * so files added, changed or removed later are picked up; a changed file is parsed again on its
+ * next use. A file that does not parse is remembered with its modification time and not tried
+ * again until it changes. Uploaded courses are kept by content hash, so sending the same file
+ * twice parses it once.
+ *
+ * Both kinds share one LRU, weighed by {@link Route#weight} against
+ * {@code inject.routes.cache.max-size}. An evicted saved course is parsed again on demand;
+ * its listing summary is small and stays.
+ */
+@Service
+public class RouteRegistry {
+
+    /** One saved course, as listed by {@code GET /routes}. Distances and climbs in metres. */
+    public record Summary(String name, int points, long length, boolean elevation,
+                          long ascent, long descent, double startLat, double startLon, long bytes) {
+
+        static Summary of(String name, Route route, long bytes) {
+            var start = new Route.Point();
+            route.place(0, start);
+            return new Summary(name, route.size(), Math.round(route.length()), route.hasElevation(),
+                               Math.round(route.totalAscent()), Math.round(route.totalDescent()),
+                               start.lat, start.lon, bytes);
+        }
+    }
+
+    /** No saved course by that name (or no course directory configured). */
+    static final class UnknownRouteException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnknownRouteException(String name) {
+            super("Unknown route: " + name);
+        }
+    }
+
+    // A saved course's summary with the modification time it was parsed at; without a summary,
+    // why that version did not parse
+    private record Indexed(Summary summary, FileTime modified, String error) {}
+
+    private final Path dir;                                              // null: no saved courses
+    private final WeightedLru<String, Route> parsed;                     // file name, or "sha256:" + hash
+    private final Map<String, Indexed> index = new ConcurrentHashMap<>();
+    private final Map<String, ReentrantLock> loading = new ConcurrentHashMap<>();
+
+    public RouteRegistry(@Value("${inject.routes.dir:}") String dir,
+                         @Value("${inject.routes.cache.max-size:32MB}") DataSize maxSize) {
+        this.dir = dir.isBlank() ? null : Path.of(dir).toAbsolutePath().normalize();
+        this.parsed = new WeightedLru<>(maxSize.toBytes(), Route::weight);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void index() {
+        if (dir != null) FitDiagnostics.info("Indexed {} saved route(s)", list().size());
+    }
+
+    /**
+     * Options that follow a course: an uploaded {@code course} file, else the saved course
+     * named {@code route}, else {@code opts} unchanged.
+     *
+     * @throws IllegalArgumentException if the course does not parse
+     * @throws UnknownRouteException    if there is no saved course by that name
+     */
+    InjectOptions routed(InjectOptions opts, MultipartFile course, String route) throws IOException {
+        if (course != null && !course.isEmpty()) return opts.withRoute(upload(course.getBytes()));
+        if (route != null && !route.isBlank()) return opts.withRoute(get(route));
+        return opts;
+    }
+
+    /** An uploaded course, parsed unless the same bytes were parsed before. */
+    Route upload(byte[] data) {
+        String key = "sha256:" + HexFormat.of().formatHex(ResultCache.sha256().digest(data));
+        Route route = parsed.get(key);
+        if (route == null) {
+            route = Route.parse(data);
+            parsed.put(key, route);
+        }
+        return route;
+    }
+
+    /**
+     * The saved course {@code name}, parsed on first use or when the file changed since.
+     *
+     * @throws UnknownRouteException    if there is no such file in {@code inject.routes.dir}
+     * @throws IllegalArgumentException if the file does not parse
+     */
+    Route get(String name) {
+        Path file = file(name);
+        FileTime modified = modified(file, name);
+        Route route = parsed.get(name);
+        Indexed seen = index.get(name);
+        if (seen != null && seen.modified().equals(modified)) {
+            if (seen.summary() == null) throw new IllegalArgumentException(seen.error());
+            if (route != null) return route;
+        }
+
+        // One parse per course, however many requests want it at once
+        var lock = loading.computeIfAbsent(name, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            route = parsed.get(name);
+            seen = index.get(name);
+            if (route != null && seen != null && seen.modified().equals(modified)) return route;
+            return load(name, file, modified);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Summaries of every saved course, by name. The directory is read again, so new and
+     * changed files are parsed here and removed ones dropped; files that do not parse are
+     * left out, and reported once per version.
+     */
+    List<Summary> list() {
+        if (dir == null || !Files.isDirectory(dir)) {
+            index.clear();
+            return List.of();
+        }
+        List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.filter(f -> isCourse(f.getFileName().toString()) && Files.isRegularFile(f)).toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot list routes in " + dir, e);
+        }
+        var names = new ArrayList<String>(files.size());
+        var summaries = new ArrayList<Summary>(files.size());
+        for (Path f : files) {
+            String name = f.getFileName().toString();
+            names.add(name);
+            Indexed seen = index.get(name);
+            try {
+                if (seen == null || !seen.modified().equals(Files.getLastModifiedTime(f))) {
+                    get(name);
+                    seen = index.get(name);
+                }
+                if (seen != null && seen.summary() != null) summaries.add(seen.summary());
+            } catch (IllegalArgumentException | UnknownRouteException e) {
+                FitDiagnostics.warn("Skipping route {}: {}", name, e.getMessage());
+            } catch (IOException | UncheckedIOException e) {
+                FitDiagnostics.warn("Skipping route {}: {}", name, e.toString());
+            }
+        }
+        index.keySet().retainAll(names);
+        loading.keySet().retainAll(names);
+        summaries.sort(Comparator.comparing(Summary::name));
+        return summaries;
+    }
+
+    private Route load(String name, Path file, FileTime modified) {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read route " + name, e);
+        }
+        Route route;
+        try {
+            route = Route.parse(data);
+        } catch (IllegalArgumentException e) {
+            index.put(name, new Indexed(null, modified, e.getMessage()));
+            throw e;
+        }
+        parsed.put(name, route);
+        index.put(name, new Indexed(Summary.of(name, route, data.length), modified, null));
+        FitDiagnostics.debug("Parsed route {}: {} points", name, route.size());
+        return route;
+    }
+
+    // A plain file name in the course directory, never a path out of it
+    private Path file(String name) {
+        if (dir == null || !isCourse(name) || name.startsWith(".") || name.contains("/") || name.contains("\\")) {
+            throw new UnknownRouteException(name);
+        }
+        Path file = dir.resolve(name).normalize();
+        if (!dir.equals(file.getParent()) || !Files.isRegularFile(file)) throw new UnknownRouteException(name);
+        return file;
+    }
+
+    private static FileTime modified(Path file, String name) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            throw new UnknownRouteException(name);
+        }
+    }
+
+    private static boolean isCourse(String name) {
+        String n = name.toLowerCase(Locale.ROOT);
+        return n.endsWith(".gpx") || n.endsWith(".fit");
+    }
+}
@@ -0,0 +1,215 @@
+package com.yourco;
+
+import com.garmin.fit.*;
+import java.util.*;
+
+import static com.yourco.AddInclineFitGem.*;
+
+/**
+ * Single-pass inject pipeline: sits on the {@link MesgBroadcaster} and turns every
+ * decoded message into its output form as it arrives, writing straight to the encoder.
+ *
+ * Only two things are held back:
+ *  • RECORDs that still need an interpolated distance, in a window of at most
+ *    {@link #MAX_LOOKAHEAD} messages (flushed as soon as the next known distance arrives);
+ *  • SESSION/LAP messages, which are patched with the final summary values in {@link #finish()}.
+ *
+ * Distances follow the same rules as the batch {@code inject}; the one difference is a
+ * window overflow, where pending records are extrapolated from the last known pace
+ * (or their own speed field) instead of waiting for data further down the file.
+ */
+final class StreamingInjector implements MesgListener {
+
+    static final int MAX_LOOKAHEAD = 1024;
+
+    private final MesgListener sink;
+    private final double startLat, startLon, cosB, sinB, bearing, grade;
+    private final float startAlt;
+    private final short subVal;
+    private final Random random; // For altitude noise
+
+    private final ArrayDeque<Mesg> pending = new ArrayDeque<>();
+    private final List<Mesg> summaries = new ArrayList<>();
+
+    // Interpolation anchor: the last resolved (time, distance) point
+    private long anchorTime = -1;
+    private float anchorDist = 0f;
+    private boolean overflowed = false;
+
+    // Known distances seen so far
+    private int knownCount = 0;
+    private long firstTime = -1, prevKnownTime, lastKnownTime;
+    private float prevKnownDist, lastKnownDist, maxKnownDist = 0f;
+    private float sessionTotalDist = 0f;
+    private Float sessionTotalDistAny = null;
+
+    // Output state
+    private Float firstDist = null;
+    private double curLat, curLon;
+    private float recMinAlt = Float.MAX_VALUE, recMaxAlt = -Float.MAX_VALUE;
+    private int recCount = 0, mesgCount = 0;
+    private boolean sawFileId = false;
+
+    StreamingInjector(MesgListener sink, InjectOptions.Resolved ro) {
+        InjectOptions o = ro.opts();
+        this.sink = sink;
+        this.startLat = o.lat(); this.startLon = o.lon(); this.startAlt = o.alt();
+        this.bearing = o.bearing(); this.grade = o.grade(); this.subVal = ro.subVal();
+        this.cosB = ro.cosB(); this.sinB = ro.sinB();
+        this.curLat = startLat; this.curLon = startLon;
+        this.random = noiseRandom(o);
+    }
+
+    int recordCount()  { return recCount; }
+    int messageCount() { return mesgCount; }
+
+    @Override
+    public void onMesg(Mesg m) {
+        switch (m.getNum()) {
+            case MesgNum.FILE_ID -> { sawFileId = true; emit(m); }
+            case MesgNum.SPORT   -> emit(retagSport(m, subVal));
+            case MesgNum.SESSION -> {
+                var s = retagSession(m, subVal);
+                Float d = s.getTotalDistance();
+                if (d != null && sessionTotalDistAny == null) sessionTotalDistAny = d;
+                if (d != null && d > 0 && sessionTotalDist == 0f) sessionTotalDist = d;
+                summaries.add(s);
+            }
+            case MesgNum.LAP     -> summaries.add(retagLap(m, subVal));
+            case MesgNum.RECORD  -> onRecord(m); // Rewritten in place, no RecordMesg copy
+            case MesgNum.WORKOUT, MesgNum.WORKOUT_STEP -> { } // Skip
+            default              -> emit(m); // Copy others
+        }
+    }
+
+    private void onRecord(Mesg r) {
+        Long ts = r.getFieldLongValue(RecordMesg.TimestampFieldNum, 0, Fit.SUBFIELD_INDEX_MAIN_FIELD);
+        if (ts == null) return; // Records without a timestamp cannot be placed
+        long t = ts;
+        if (firstTime < 0) { firstTime = t; anchorTime = t; }
+
+        Float dist = distance(r);
+        if (dist == null) {
+            pending.add(r);
+            if (pending.size() >= MAX_LOOKAHEAD) { overflowed = true; extrapolatePending(); }
+            return;
+        }
+
+        // A known distance closes the window: interpolate everything between the anchor and here
+        long span = t - anchorTime;
+        for (Mesg p : pending) {
+            long pt = time(p);
+            float d;
+            if (pt >= t || span <= 0) d = dist;
+            else if (knownCount == 0 && !overflowed) d = dist * (pt - anchorTime) / span; // Before first known distance - assume constant pace
+            else d = anchorDist + ((float)(pt - anchorTime) / span) * (dist - anchorDist);
+            place(p, d);
+        }
+        pending.clear();
+
+        if (knownCount > 0) { prevKnownTime = lastKnownTime; prevKnownDist = lastKnownDist; }
+        lastKnownTime = t; lastKnownDist = dist; knownCount++;
+        if (dist > maxKnownDist) maxKnownDist = dist;
+        anchorTime = t; anchorDist = dist;
+        place(r, dist);
+    }
+
+    // Window full (or end of stream after an overflow): continue from the anchor at the best known pace
+    private void extrapolatePending() {
+        if (knownCount >= 2) {
+            long lastTimeDiff = lastKnownTime - prevKnownTime;
+            float pace = lastTimeDiff > 0 ? (lastKnownDist - prevKnownDist) / lastTimeDiff : 0f; // meters per timestamp unit
+            long t0 = anchorTime; float d0 = anchorDist;
+            for (Mesg p : pending) {
+                long pt = time(p);
+                anchorTime = pt; anchorDist = d0 + pace * (pt - t0);
+                place(p, anchorDist);
+            }
+        } else {
+            // No pace yet: integrate the record's own speed, or stand still
+            for (Mesg p : pending) {
+                long pt = time(p);
+                Float spd = p.getFieldFloatValue(RecordMesg.EnhancedSpeedFieldNum, 0, Fit.SUBFIELD_INDEX_MAIN_FIELD);
+                if (spd == null) spd = p.getFieldFloatValue(RecordMesg.SpeedFieldNum, 0, Fit.SUBFIELD_INDEX_MAIN_FIELD);
+                anchorDist += (spd != null ? spd : 0f) * Math.max(0, pt - anchorTime);
+                anchorTime = pt;
+                place(p, anchorDist);
+            }
+        }
+        pending.clear();
+    }
+
+    // Everything that is left after the last known distance, using the batch rules where possible
+    private void flushTail() {
+        if (pending.isEmpty()) return;
+        if (overflowed || knownCount >= 2) { extrapolatePending(); return; }
+
+        // Zero or one known point: spread up to the best total over the remaining duration
+        float total = knownCount == 1 ? Math.max(maxKnownDist, sessionTotalDist) : sessionTotalDist;
+        long totalTimeDiff = time(pending.peekLast()) - firstTime;
+        for (Mesg p : pending) {
+            long elapsed = time(p) - firstTime;
+            float d;
+            if (totalTimeDiff > 0) d = total * elapsed / totalTimeDiff;
+            else d = knownCount == 1 ? total : 0f; // Fallback
+            place(p, d);
+        }
+        pending.clear();
+    }
+
+    // Inject GPS + enhanced altitude for one record and send it downstream
+    private void place(Mesg r, float recordDist) {
+        if (firstDist == null) firstDist = recordDist;
+
+        // Calculate GPS position based on distance traveled
+        double distTraveled = recordDist - firstDist;
+        curLat = startLat + m2degLat(distTraveled * cosB);
+        curLon = startLon + m2degLon(distTraveled * sinB, curLat);
+        r.setFieldValue(RecordMesg.PositionLatFieldNum, 0, toSemi(curLat), Fit.SUBFIELD_INDEX_MAIN_FIELD);
+        r.setFieldValue(RecordMesg.PositionLongFieldNum, 0, toSemi(curLon), Fit.SUBFIELD_INDEX_MAIN_FIELD);
+
+        float targetAlt = startAlt + (float)(distTraveled) * (float)grade;
+        float alt = targetAlt + (float)(random.nextDouble() - 0.5) * (float)ALTITUDE_NOISE_FACTOR;
+        r.setFieldValue(RecordMesg.EnhancedAltitudeFieldNum, 0, alt, Fit.SUBFIELD_INDEX_MAIN_FIELD);
+        if (alt < recMinAlt) recMinAlt = alt;
+        if (alt > recMaxAlt) recMaxAlt = alt;
+
+        // Remove legacy fields
+        safeRemoveField(r, RecordMesg.AltitudeFieldNum);
+        safeRemoveField(r, RecordMesg.SpeedFieldNum);
+        if (distance(r) == null) r.setFieldValue(RecordMesg.DistanceFieldNum, 0, recordDist, Fit.SUBFIELD_INDEX_MAIN_FIELD);
+
+        recCount++;
+        emit(r);
+    }
+
+    /** Drains the lookahead window, then writes the patched SESSION/LAP messages. */
+    void finish() {
+        flushTail();
+        if (!sawFileId) { FitDiagnostics.warn("No FILE_ID message"); }
+
+        // Get the total distance from the last record or session
+        float totalOriginalDist = knownCount > 0 ? lastKnownDist : 0f;
+        if (totalOriginalDist == 0f && sessionTotalDistAny != null) totalOriginalDist = sessionTotalDistAny;
+
+        var summary = Summary.of(recCount, recMinAlt, recMaxAlt, startAlt, startLat, startLon,
+                                 curLat, curLon, totalOriginalDist, bearing, grade, subVal);
+        for (Mesg m : summaries) {
+            emit(m.getNum() == MesgNum.SESSION ? patchSession(m, summary) : patchLap(m, summary));
+        }
+        summaries.clear();
+    }
+
+    private static long time(Mesg r) {
+        return r.getFieldLongValue(RecordMesg.TimestampFieldNum, 0, Fit.SUBFIELD_INDEX_MAIN_FIELD);
+    }
+
+    private static Float distance(Mesg r) {
+        return r.getFieldFloatValue(RecordMesg.DistanceFieldNum, 0, Fit.SUBFIELD_INDEX_MAIN_FIELD);
+    }
+
+    private void emit(Mesg m) {
+        encodeSafely(sink, m);
+        mesgCount++;
+    }
+}
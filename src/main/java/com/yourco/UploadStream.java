@@ -0,0 +1,127 @@
+package com.yourco;
+
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * A request body on its way into the decoder: counts and hashes the bytes as they pass and
+ * fails with {@link MaxUploadSizeExceededException} (413) as soon as the body grows past the
+ * limit, so an oversized or endless upload is cut off without ever being held anywhere.
+ *
+ * The hash is the same as {@link ResultCache#hash} of the whole body, so a streamed upload
+ * gets the same token and cache entries as the same file sent as multipart.
+ *
+ * The SDK decoder takes {@code available() == 0} for the end of the input and otherwise goes on
+ * to decode another chained file. A body still in flight can report 0, and a chunked body
+ * reports its terminator as available, so {@link #available} reads ahead one byte instead.
+ * {@link #peek} reads ahead the same way, e.g. the FIT header before admission.
+ */
+final class UploadStream extends FilterInputStream {
+
+    private long maxBytes;
+    private final MessageDigest digest;
+    private long count;
+    private byte[] ahead = new byte[0];   // bytes read ahead by peek() or available(), not yet returned
+    private int aheadPos;
+    private final byte[] one = new byte[1];   // available()'s one-byte read-ahead, reused
+
+    UploadStream(InputStream in, long maxBytes) {
+        super(in);
+        this.maxBytes = maxBytes;
+        this.digest = ResultCache.sha256();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (aheadPos < ahead.length) return ahead[aheadPos++] & 0xFF;
+        int b = in.read();
+        if (b >= 0) { digest.update((byte) b); advance(1); }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        int k = Math.min(len, ahead.length - aheadPos);
+        if (k > 0) {
+            System.arraycopy(ahead, aheadPos, b, off, k);
+            aheadPos += k;
+            int n = len > k && in.available() > 0 ? read(b, off + k, len - k) : 0;
+            return k + Math.max(n, 0);
+        }
+        int n = in.read(b, off, len);
+        if (n > 0) { digest.update(b, off, n); advance(n); }
+        return n;
+    }
+
+    /**
+     * The next {@code n} bytes (fewer at the end of the body), without consuming them: reads
+     * still return them first. Only at the start or after everything peeked has been read.
+     */
+    byte[] peek(int n) throws IOException {
+        if (aheadPos < ahead.length) throw new IllegalStateException("Peeked bytes not read yet");
+        byte[] buf = new byte[n];
+        int len = 0;
+        for (int k; len < n && (k = in.read(buf, len, n - len)) >= 0; ) {
+            digest.update(buf, len, k);
+            advance(k);
+            len += k;
+        }
+        ahead = len == n ? buf : Arrays.copyOf(buf, len);
+        aheadPos = 0;
+        return ahead.clone();
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes must still be hashed
+        byte[] buf = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        for (int k; skipped < n && (k = read(buf, 0, (int) Math.min(buf.length, n - skipped))) > 0; ) skipped += k;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (aheadPos < ahead.length) return ahead.length - aheadPos;
+        // Block for one byte, so only the true end of the body reads as 0
+        int b = read();
+        if (b < 0) return 0;
+        one[0] = (byte) b;
+        ahead = one;
+        aheadPos = 0;
+        return 1;
+    }
+
+    @Override public boolean markSupported() { return false; }
+
+    /** Reads whatever the decoder left behind (trailing bytes), so {@link #hash} covers the whole body. */
+    void drain() throws IOException {
+        byte[] buf = new byte[8192];
+        while (read(buf, 0, buf.length) >= 0) { }
+    }
+
+    long count() { return count; }
+
+    /** Lowers the limit, e.g. to what the memory budget covers; the bytes already read must fit. */
+    void limit(long maxBytes) {
+        this.maxBytes = Math.min(this.maxBytes, maxBytes);
+        advance(0);
+    }
+
+    /** Hex SHA-256 of everything read so far; call after {@link #drain}. */
+    String hash() {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private void advance(int n) {
+        count += n;
+        if (count > maxBytes) throw new MaxUploadSizeExceededException(maxBytes);
+    }
+}
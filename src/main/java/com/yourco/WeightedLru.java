@@ -0,0 +1,40 @@
+package com.yourco;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Small thread-safe LRU map bounded by total weight (usually bytes) rather than entry count.
+ * Values heavier than the whole budget are not stored.
+ */
+final class WeightedLru<K, V> {
+
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    WeightedLru(long maxWeight, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    long maxWeight() { return maxWeight; }
+
+    synchronized V get(K key) {
+        return entries.get(key);
+    }
+
+    synchronized void put(K key, V value) {
+        long w = weigher.applyAsLong(value);
+        if (w > maxWeight) return;
+        V old = entries.put(key, value);
+        weight += w - (old != null ? weigher.applyAsLong(old) : 0);
+        for (Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator(); weight > maxWeight && it.hasNext(); ) {
+            weight -= weigher.applyAsLong(it.next().getValue());
+            it.remove();
+        }
+    }
+}
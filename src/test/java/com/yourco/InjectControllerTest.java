@@ -0,0 +1,88 @@
+package com.yourco;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.request.async.StandardServletAsyncWebRequest;
+import org.springframework.web.context.request.async.WebAsyncManager;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InjectControllerTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final MemoryBudget memory = new MemoryBudget(registry, DataSize.ofMegabytes(8),
+            DataSize.ofMegabytes(1), 0.5, Duration.ofMillis(100), DataSize.ofBytes(0), DataSize.ofBytes(0));
+
+    private final MockHttpServletRequest request = new MockHttpServletRequest("POST", "/inject");
+    private final WebAsyncManager async = WebAsyncUtils.getAsyncManager(request);
+
+    InjectControllerTest() {
+        request.setAsyncSupported(true);
+        async.setAsyncWebRequest(new StandardServletAsyncWebRequest(request, new MockHttpServletResponse()));
+    }
+
+    @Test
+    void reservationIsReleasedWhenTheAsyncRequestTimesOutBeforeTheBodyRuns() throws Exception {
+        var held = memory.reserve(new byte[0], 50_000);
+        assertTrue(reserved() > 0);
+
+        // An executor that never gets round to the body, as under load
+        async.setTaskExecutor(task -> { });
+        InjectController.releaseOnCompletion(request, held);
+        async.startCallableProcessing(() -> {
+            try (held) {
+                return null;
+            }
+        });
+
+        // The container times the request out, then completes it
+        var context = (MockAsyncContext) request.getAsyncContext();
+        for (AsyncListener l : context.getListeners()) l.onTimeout(new AsyncEvent(context));
+        context.complete();
+
+        assertEquals(0, reserved());
+        assertFullCapacity();
+    }
+
+    @Test
+    void reservationIsReleasedWhenTheExecutorRejectsTheBody() throws Exception {
+        var held = memory.reserve(new byte[0], 50_000);
+
+        async.setTaskExecutor((AsyncTaskExecutor) task -> {
+            throw new RejectedExecutionException("full");
+        });
+        InjectController.releaseOnCompletion(request, held);
+        async.startCallableProcessing(() -> {
+            try (held) {
+                return null;
+            }
+        });
+        ((MockAsyncContext) request.getAsyncContext()).complete();
+
+        assertEquals(0, reserved());
+        assertFullCapacity();
+    }
+
+    private double reserved() {
+        return registry.get("fit.memory.reserved").gauge().value();
+    }
+
+    // The whole budget can be reserved again at once
+    private void assertFullCapacity() throws InterruptedException {
+        var all = memory.reserve(new byte[0], DataSize.ofMegabytes(8).toBytes() / MemoryBudget.HEAP_PER_FIT_BYTE);
+        assertEquals(DataSize.ofMegabytes(8).toBytes(), reserved());
+        all.close();
+    }
+}
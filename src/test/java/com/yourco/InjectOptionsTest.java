@@ -0,0 +1,44 @@
+package com.yourco;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class InjectOptionsTest {
+
+    private static InjectOptions bearing(double bearing) {
+        return new InjectOptions(47, 8, 0, bearing, 0.1, false);
+    }
+
+    @Test
+    void negativeBearingIsNormalized() {
+        assertEquals(315, bearing(-45).bearing());
+        assertEquals(270, bearing(-450).bearing());
+    }
+
+    @Test
+    void bearingOfAFullTurnOrMoreIsNormalized() {
+        assertEquals(0, bearing(360).bearing());
+        assertEquals(5, bearing(725).bearing());
+    }
+
+    @Test
+    void bearingWithinRangeIsKept() {
+        assertEquals(0, bearing(0).bearing());
+        assertEquals(359.5, bearing(359.5).bearing());
+    }
+
+    @Test
+    void overriddenBearingIsNormalized() {
+        assertEquals(350, bearing(0).with(Map.of("bearing", -10)).bearing());
+    }
+
+    @Test
+    void nonFiniteBearingIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> bearing(Double.NaN));
+        assertThrows(IllegalArgumentException.class, () -> bearing(Double.POSITIVE_INFINITY));
+    }
+}